@@ -0,0 +1,310 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * EmployeeIdIndex is a hash table from employee id to a long value (the byte offset of the employee's latest record in
+ * the tax report file). It uses open addressing with linear probing over primitive long slots, so no Long objects or
+ * map entries are created and tens of millions of employees take 16 bytes per slot.
+ * The slots are kept in pages of LongBuffers, which are either plain long arrays (while building) or pages of a
+ * memory-mapped index file (after load), so a saved index is usable straight away without reading it into the heap.
+ *
+ * Index file layout (big-endian longs): magic, capacity, size, source length, then capacity slots of (id, value).
+ */
+public class EmployeeIdIndex {
+
+    //Returned by get when the id is not in the index. Ids and values must not be negative.
+    public static final long notFound = -1;
+    //"TAXIDX01"
+    private static final long magic = 0x5441584944583031L;
+    private static final int headerLongs = 4;
+    //Marks an empty slot, which is why ids can not be negative.
+    private static final long emptyKey = -1;
+    //2^22 slots (64MB) per page keeps every page well within the size that can be mapped at once.
+    private static final int pageSlotBits = 22;
+    private static final int pageSlots = 1 << pageSlotBits;
+    //The table is doubled once it is this full, probe sequences stay short below it.
+    private static final double maxLoadFactor = 0.7;
+
+    private LongBuffer[] pages;
+    private long capacity;
+    private long size = 0;
+    private long sourceLength = 0;
+    private final boolean readOnly;
+
+    /**
+     * Constructor to build an empty index sized for the expected number of employees.
+     *
+     * @param expectedEntries long the number of distinct employee ids expected, the index grows past it if needed.
+     */
+    public EmployeeIdIndex(long expectedEntries) {
+        this.capacity = capacityFor(expectedEntries);
+        this.pages = allocatePages(capacity);
+        this.readOnly = false;
+    }
+
+    private EmployeeIdIndex(LongBuffer[] pages, long capacity, long size, long sourceLength) {
+        this.pages = pages;
+        this.capacity = capacity;
+        this.size = size;
+        this.sourceLength = sourceLength;
+        this.readOnly = true;
+    }
+
+    /**
+     * Smallest power of two number of slots that holds the entries under the load factor.
+     */
+    private static long capacityFor(long entries) {
+        long capacity = 16;
+        while (capacity * maxLoadFactor < entries) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static LongBuffer[] allocatePages(long capacity) {
+        int pageCount = (int) ((capacity + pageSlots - 1) >>> pageSlotBits);
+        LongBuffer[] pages = new LongBuffer[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            long[] slots = new long[(int) Math.min(pageSlots, capacity - ((long) i << pageSlotBits)) * 2];
+            Arrays.fill(slots, 0, slots.length, emptyKey);
+            pages[i] = LongBuffer.wrap(slots);
+        }
+        return pages;
+    }
+
+    /**
+     * Spread the bits of the id so consecutive ids do not cluster in neighbouring slots (the finaliser of MurmurHash3).
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private long keyAt(long slot) {
+        return pages[(int) (slot >>> pageSlotBits)].get((int) (slot & (pageSlots - 1)) * 2);
+    }
+
+    private long valueAt(long slot) {
+        return pages[(int) (slot >>> pageSlotBits)].get((int) (slot & (pageSlots - 1)) * 2 + 1);
+    }
+
+    private void setSlot(long slot, long key, long value) {
+        LongBuffer page = pages[(int) (slot >>> pageSlotBits)];
+        int position = (int) (slot & (pageSlots - 1)) * 2;
+        page.put(position, key);
+        page.put(position + 1, value);
+    }
+
+    /**
+     * Set the value for an employee id, replacing any value it already had.
+     *
+     * @param employeeId long the employee id, not negative.
+     * @param value      long the value to store, not negative.
+     * @throws IllegalArgumentException if the id or value is negative.
+     * @throws IllegalStateException    if the index was loaded from a file (it is read only).
+     */
+    public void put(long employeeId, long value) {
+        if (employeeId < 0 || value < 0) {
+            throw new IllegalArgumentException("Employee ids and values in the index can not be negative");
+        }
+        if (readOnly) {
+            throw new IllegalStateException("An index loaded from a file is read only");
+        }
+        if (size + 1 > capacity * maxLoadFactor) {
+            resize(capacity * 2);
+        }
+        long mask = capacity - 1;
+        for (long slot = mix(employeeId) & mask; ; slot = (slot + 1) & mask) {
+            long key = keyAt(slot);
+            if (key == emptyKey) {
+                setSlot(slot, employeeId, value);
+                size++;
+                return;
+            }
+            if (key == employeeId) {
+                setSlot(slot, employeeId, value);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the value of an employee id.
+     *
+     * @param employeeId long the employee id.
+     * @return long the value, or notFound if the id is not in the index.
+     */
+    public long get(long employeeId) {
+        if (employeeId < 0) {
+            return notFound;
+        }
+        long mask = capacity - 1;
+        for (long slot = mix(employeeId) & mask; ; slot = (slot + 1) & mask) {
+            long key = keyAt(slot);
+            if (key == employeeId) {
+                return valueAt(slot);
+            }
+            if (key == emptyKey) {
+                return notFound;
+            }
+        }
+    }
+
+    /**
+     * Copy every entry of another index into this one, replacing the values of ids that are in both.
+     *
+     * @param other EmployeeIdIndex the index to copy from.
+     */
+    public void putAll(EmployeeIdIndex other) {
+        for (long slot = 0; slot < other.capacity; slot++) {
+            long key = other.keyAt(slot);
+            if (key != emptyKey) {
+                put(key, other.valueAt(slot));
+            }
+        }
+    }
+
+    /**
+     * Rehash every entry into a table with the new number of slots.
+     */
+    private void resize(long newCapacity) {
+        LongBuffer[] oldPages = pages;
+        long oldCapacity = capacity;
+        pages = allocatePages(newCapacity);
+        capacity = newCapacity;
+        size = 0;
+        long mask = capacity - 1;
+        for (long oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+            LongBuffer page = oldPages[(int) (oldSlot >>> pageSlotBits)];
+            int position = (int) (oldSlot & (pageSlots - 1)) * 2;
+            long key = page.get(position);
+            if (key == emptyKey) {
+                continue;
+            }
+            long slot = mix(key) & mask;
+            while (keyAt(slot) != emptyKey) {
+                slot = (slot + 1) & mask;
+            }
+            setSlot(slot, key, page.get(position + 1));
+            size++;
+        }
+    }
+
+    /**
+     * Get the number of employee ids in the index.
+     *
+     * @return long the number of entries.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Get the length of the source file that the index covers (set when saving).
+     *
+     * @return long the number of bytes of the tax report file that were indexed.
+     */
+    public long getSourceLength() {
+        return sourceLength;
+    }
+
+    /**
+     * Set the length of the source file that the index covers, it is saved in the index file.
+     *
+     * @param sourceLength long the number of bytes of the tax report file that were indexed.
+     */
+    public void setSourceLength(long sourceLength) {
+        this.sourceLength = sourceLength;
+    }
+
+    /**
+     * Write the index to a file that can be loaded with load. The file is written through a memory mapping one page
+     * at a time under a temporary name of its own and then renamed over any existing file, so readers that still have
+     * the old file mapped keep working, never see a half written index, and two writers never share a temporary file.
+     *
+     * @param pathName String path of the index file.
+     * @throws IOException error thrown if the file can not be written.
+     */
+    public void save(String pathName) throws IOException {
+        long fileLength = (headerLongs + capacity * 2) * 8;
+        File indexFile = new File(pathName).getAbsoluteFile();
+        Path temporaryPath = Files.createTempFile(indexFile.getParentFile().toPath(),
+                indexFile.getName(), ".tmp");
+        boolean saved = false;
+        try {
+            try (RandomAccessFile temporaryFile = new RandomAccessFile(temporaryPath.toFile(), "rw");
+                 FileChannel channel = temporaryFile.getChannel()) {
+                ByteBuffer header = ByteBuffer.allocate(headerLongs * 8);
+                header.putLong(magic).putLong(capacity).putLong(size).putLong(sourceLength).flip();
+                channel.write(header, 0);
+                long filePosition = headerLongs * 8;
+                for (LongBuffer page : pages) {
+                    long pageBytes = (long) page.capacity() * 8;
+                    LongBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, filePosition, pageBytes).asLongBuffer();
+                    page.rewind();
+                    mapped.put(page);
+                    filePosition += pageBytes;
+                }
+                temporaryFile.setLength(fileLength);
+            }
+            Files.move(temporaryPath, indexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            saved = true;
+        } finally {
+            if (!saved) {
+                Files.deleteIfExists(temporaryPath);
+            }
+        }
+    }
+
+    /**
+     * Load an index file written by save. The slots are memory-mapped rather than read, so loading takes about the same
+     * time for any size and the operating system pages the table in as lookups touch it. The loaded index is read only.
+     *
+     * @param pathName String path of the index file.
+     * @return EmployeeIdIndex the loaded index.
+     * @throws IOException error thrown if the file can not be read or is not a valid index file.
+     */
+    public static EmployeeIdIndex load(String pathName) throws IOException {
+        try (RandomAccessFile indexFile = new RandomAccessFile(pathName, "r");
+             FileChannel channel = indexFile.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(headerLongs * 8);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                //Keep reading until the header is complete or the file ends.
+            }
+            header.flip();
+            if (header.remaining() < headerLongs * 8 || header.getLong() != magic) {
+                throw new IOException(pathName + " is not an employee id index file");
+            }
+            long capacity = header.getLong();
+            long size = header.getLong();
+            long sourceLength = header.getLong();
+            if (capacity < 1 || Long.bitCount(capacity) != 1 || channel.size() != (headerLongs + capacity * 2) * 8) {
+                throw new IOException(pathName + " is incomplete or damaged");
+            }
+
+            int pageCount = (int) ((capacity + pageSlots - 1) >>> pageSlotBits);
+            LongBuffer[] pages = new LongBuffer[pageCount];
+            long filePosition = headerLongs * 8;
+            for (int i = 0; i < pageCount; i++) {
+                long pageBytes = Math.min(pageSlots, capacity - ((long) i << pageSlotBits)) * 16;
+                //The mapping stays valid after the channel is closed.
+                pages[i] = channel.map(FileChannel.MapMode.READ_ONLY, filePosition, pageBytes).asLongBuffer();
+                filePosition += pageBytes;
+            }
+            return new EmployeeIdIndex(pages, capacity, size, sourceLength);
+        }
+    }
+}
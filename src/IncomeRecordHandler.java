@@ -0,0 +1,16 @@
+import java.io.IOException;
+
+/**
+ * Callback used by TaxReportTransfer.readIncomeRecords to receive each employee id and income read from the file.
+ */
+interface IncomeRecordHandler {
+
+    /**
+     * Receive one record read from the file.
+     *
+     * @param employeeId     long the employee id.
+     * @param employeeIncome double the income (or pay) read for the employee.
+     * @throws IOException handlers that write the records somewhere else may pass their errors on.
+     */
+    void handle(long employeeId, double employeeIncome) throws IOException;
+}
@@ -0,0 +1,373 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ReportLineReader reads a text file line by line straight out of a large reusable byte buffer and offers small
+ * hand-rolled parsing helpers over the current line. It is used instead of Scanner/regex for bulk paths (import, export,
+ * verification) where millions of lines are read, so no String or Matcher objects are created per line.
+ * Only ASCII content is expected for the parsed fields, any other bytes are simply treated as separators.
+ */
+class ReportLineReader implements Closeable {
+
+    //Default size of the reusable read buffer (1MB), it only grows if a single line is longer than the buffer.
+    public static final int defaultBufferSize = 1 << 20;
+
+    //Powers of ten used to scale the parsed digits back into a double without any rounding error.
+    private static final double[] powersOfTen = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+            1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final InputStream inputStream;
+    private byte[] buffer;
+    //Bytes in [position, limit) have been read from the stream but not consumed as a line yet.
+    private int position = 0;
+    private int limit = 0;
+    //Bounds of the current line (without the line terminator) and the parse cursor within it.
+    private int lineStart = 0;
+    private int lineEnd = 0;
+    private int cursor = 0;
+    private long lineNumber = 0;
+    //Offset in the stream of the first byte held in the buffer, used to give the offset of each line.
+    private long bufferOffset = 0;
+    private boolean endOfStream = false;
+    //Whether the current line ended with a line terminator, only the last line of the stream may not.
+    private boolean lineTerminated = false;
+
+    /**
+     * Constructor to build a line reader over an input stream with the default buffer size.
+     *
+     * @param inputStream InputStream the stream to read, it is closed when this reader is closed.
+     */
+    public ReportLineReader(InputStream inputStream) {
+        this(inputStream, defaultBufferSize);
+    }
+
+    /**
+     * Constructor to build a line reader over an input stream with a given buffer size.
+     *
+     * @param inputStream InputStream the stream to read, it is closed when this reader is closed.
+     * @param bufferSize  int initial size of the read buffer in bytes.
+     */
+    public ReportLineReader(InputStream inputStream, int bufferSize) {
+        this.inputStream = inputStream;
+        this.buffer = new byte[Math.max(bufferSize, 64)];
+    }
+
+    /**
+     * Advance to the next line of the file. Both "\n" and "\r\n" line terminators are accepted.
+     *
+     * @return boolean true if a line is available, false when the end of the file has been reached.
+     * @throws IOException error thrown if the underlying stream can not be read.
+     */
+    public boolean nextLine() throws IOException {
+        int scanFrom = position;
+        while (true) {
+            for (int i = scanFrom; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    setLine(position, i);
+                    position = i + 1;
+                    lineTerminated = true;
+                    return true;
+                }
+            }
+            if (endOfStream) {
+                //Last line of the file without a line terminator
+                if (position < limit) {
+                    setLine(position, limit);
+                    position = limit;
+                    lineTerminated = false;
+                    return true;
+                }
+                return false;
+            }
+            //Remember how much was already scanned so the search carries on after the refill rather than restarting.
+            int scanned = limit - position;
+            fill();
+            scanFrom = position + scanned;
+        }
+    }
+
+    /**
+     * Set the bounds of the current line, trimming a trailing carriage return.
+     */
+    private void setLine(int start, int end) {
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+        lineStart = start;
+        lineEnd = end;
+        cursor = start;
+        lineNumber++;
+    }
+
+    /**
+     * Move the unconsumed bytes to the start of the buffer (growing it if a single line fills it) and read more data.
+     */
+    private void fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            bufferOffset += position;
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            byte[] biggerBuffer = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, biggerBuffer, 0, limit);
+            buffer = biggerBuffer;
+        }
+        int read = inputStream.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            endOfStream = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    /**
+     * Get the number of the current line, counting from 1 for the first line of the file.
+     *
+     * @return long the current line number.
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Get the offset in bytes of the start of the current line from where the reader started reading the stream.
+     *
+     * @return long the offset of the current line.
+     */
+    public long getLineOffset() {
+        return bufferOffset + lineStart;
+    }
+
+    /**
+     * Get the offset in bytes just after the current line and its terminator, which is where the next line starts.
+     *
+     * @return long the offset of the next line.
+     */
+    public long getNextLineOffset() {
+        return bufferOffset + position;
+    }
+
+    /**
+     * Check whether the current line ended with a line terminator. Only the last line of the stream can be without
+     * one, and in a tax report file that other processes append to such a line may be a record still being written.
+     *
+     * @return boolean true if the current line was ended by "\n" or "\r\n".
+     */
+    public boolean isLineTerminated() {
+        return lineTerminated;
+    }
+
+    /**
+     * Skip spaces, tabs and any other control characters from the cursor.
+     */
+    public void skipWhitespace() {
+        while (cursor < lineEnd && (buffer[cursor] & 0xFF) <= ' ') {
+            cursor++;
+        }
+    }
+
+    /**
+     * Skip everything that is not a digit, a sign or a decimal point, used for separators such as "," or ":".
+     */
+    public void skipSeparators() {
+        while (cursor < lineEnd) {
+            byte b = buffer[cursor];
+            if ((b >= '0' && b <= '9') || b == '-' || b == '.') {
+                return;
+            }
+            cursor++;
+        }
+    }
+
+    /**
+     * Check whether there is nothing but whitespace left on the current line.
+     *
+     * @return boolean true if the rest of the line is blank.
+     */
+    public boolean isBlank() {
+        skipWhitespace();
+        return cursor >= lineEnd;
+    }
+
+    /**
+     * Get the character at the cursor without consuming it.
+     *
+     * @return int the character at the cursor, or -1 at the end of the line.
+     */
+    public int peek() {
+        return cursor < lineEnd ? buffer[cursor] & 0xFF : -1;
+    }
+
+    /**
+     * Check whether the character at the cursor is a letter, this identifies heading lines.
+     *
+     * @return boolean true if the cursor is on an ASCII letter.
+     */
+    public boolean atLetter() {
+        int c = peek();
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * Check whether the character at the cursor is a digit.
+     *
+     * @return boolean true if the cursor is on a digit.
+     */
+    public boolean atDigit() {
+        int c = peek();
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Move the cursor just past the next occurrence of the given character on the current line.
+     *
+     * @param character char the character to look for.
+     * @return boolean true if the character was found, false if the end of the line was reached.
+     */
+    public boolean skipPast(char character) {
+        while (cursor < lineEnd) {
+            if (buffer[cursor++] == character) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move the cursor to the value of a JSON key on the current line (just after the ':' and any whitespace or opening
+     * quote). The search starts from the beginning of the line so keys may appear in any order.
+     *
+     * @param key String the key name without quotes.
+     * @return boolean true if the key was found.
+     */
+    public boolean seekJsonKey(String key) {
+        int keyLength = key.length();
+        for (int i = lineStart; i + keyLength + 1 < lineEnd; i++) {
+            if (buffer[i] != '"' || buffer[i + keyLength + 1] != '"') {
+                continue;
+            }
+            boolean matches = true;
+            for (int k = 0; k < keyLength && matches; k++) {
+                matches = buffer[i + 1 + k] == key.charAt(k);
+            }
+            if (matches) {
+                cursor = i + keyLength + 2;
+                skipWhitespace();
+                if (peek() != ':') {
+                    continue;
+                }
+                cursor++;
+                skipWhitespace();
+                if (peek() == '"') {
+                    cursor++;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a whole number made only of digits from the cursor.
+     *
+     * @return long the parsed number.
+     * @throws NumberFormatException if there is no digit at the cursor or the number is too long.
+     */
+    public long parseLong() {
+        return parseLong(1);
+    }
+
+    /**
+     * Parse a whole number made only of digits from the cursor, with at least a number of digits (leading zeros count).
+     *
+     * @param minimumDigits int the fewest digits accepted, for example 4 for an employee id.
+     * @return long the parsed number.
+     * @throws NumberFormatException if there are fewer digits at the cursor or the number is too long.
+     */
+    public long parseLong(int minimumDigits) {
+        if (!atDigit()) {
+            throw new NumberFormatException("Expected a number at line " + lineNumber + ": " + currentLine());
+        }
+        long value = 0;
+        int digits = 0;
+        while (atDigit()) {
+            if (++digits > 18) {
+                throw new NumberFormatException("Number too long at line " + lineNumber + ": " + currentLine());
+            }
+            value = value * 10 + (buffer[cursor++] - '0');
+        }
+        if (digits < minimumDigits) {
+            throw new NumberFormatException("Expected at least " + minimumDigits + " digits at line " + lineNumber + ": " + currentLine());
+        }
+        return value;
+    }
+
+    /**
+     * Parse a dollar amount from the cursor, for example "123123.00", "0.00" or "-4.5". A comma ends the amount as it
+     * is the CSV separator, so grouped amounts such as "12,000" are not accepted.
+     * The result is the same double that Double.valueOf would give for the same digits: the digits are accumulated
+     * into an exact long and divided once by an exact power of ten (longer values fall back to Double.parseDouble).
+     *
+     * @return double the parsed amount.
+     * @throws NumberFormatException if there is no amount at the cursor.
+     */
+    public double parseAmount() {
+        int start = cursor;
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            cursor++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        while (cursor < lineEnd) {
+            byte b = buffer[cursor];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
+            }
+            cursor++;
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Expected an amount at line " + lineNumber + ": " + currentLine());
+        }
+        //Exponents and anything too long to be held exactly are left to the JDK parser.
+        int c = peek();
+        if (c == 'e' || c == 'E' || digits > 15) {
+            while (cursor < lineEnd && buffer[cursor] != ',' && buffer[cursor] != '"' && buffer[cursor] != '}'
+                    && (buffer[cursor] & 0xFF) > ' ') {
+                cursor++;
+            }
+            String text = new String(buffer, start, cursor - start, StandardCharsets.US_ASCII);
+            return Double.parseDouble(text);
+        }
+        double value = fractionDigits > 0 ? mantissa / powersOfTen[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Get the current line as a String, mainly for error messages.
+     *
+     * @return String the text of the current line.
+     */
+    public String currentLine() {
+        return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+}
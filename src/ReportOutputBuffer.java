@@ -0,0 +1,194 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ReportOutputBuffer collects output text in a large reusable byte buffer and writes it to the stream in big chunks.
+ * Numbers are formatted by hand straight into the buffer, so writing a record does not create any String objects
+ * (String.format is slow and allocates on every call, which dominates bulk writes of millions of records).
+ */
+class ReportOutputBuffer implements Closeable {
+
+    //Default size of the reusable write buffer (1MB).
+    public static final int defaultBufferSize = 1 << 20;
+
+    //Largest amount (in cents) that is formatted by hand, anything bigger is left to String.format.
+    private static final double largestFastCents = 1e15;
+
+    private final OutputStream outputStream;
+    private final byte[] buffer;
+    private int position = 0;
+    //Scratch space to write the digits of a number backwards before copying them in order.
+    private final byte[] digits = new byte[20];
+
+    /**
+     * Constructor to build an output buffer over an output stream with the default buffer size.
+     *
+     * @param outputStream OutputStream the stream to write to, it is closed when this buffer is closed.
+     */
+    public ReportOutputBuffer(OutputStream outputStream) {
+        this(outputStream, defaultBufferSize);
+    }
+
+    /**
+     * Constructor to build an output buffer over an output stream with a given buffer size.
+     *
+     * @param outputStream OutputStream the stream to write to, it is closed when this buffer is closed.
+     * @param bufferSize   int size of the write buffer in bytes.
+     */
+    public ReportOutputBuffer(OutputStream outputStream, int bufferSize) {
+        this.outputStream = outputStream;
+        this.buffer = new byte[Math.max(bufferSize, 64)];
+    }
+
+    /**
+     * Make sure there is room for the given number of bytes, writing the buffer out if there is not.
+     */
+    private void ensureRoom(int bytes) throws IOException {
+        if (position + bytes > buffer.length) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Make sure the next given number of bytes go out in the same write to the stream, by writing out what is buffered
+     * now if they would not fit. Used so a record is never split across two writes.
+     *
+     * @param bytes int the number of bytes about to be written, at most the buffer size.
+     * @throws IOException error thrown if the buffer could not be written to the stream.
+     */
+    public void reserve(int bytes) throws IOException {
+        ensureRoom(bytes);
+    }
+
+    /**
+     * Write a single ASCII character.
+     *
+     * @param character char the character to write.
+     * @throws IOException error thrown if the buffer could not be written to the stream.
+     */
+    public void writeChar(char character) throws IOException {
+        ensureRoom(1);
+        buffer[position++] = (byte) character;
+    }
+
+    /**
+     * Write a String as UTF-8, used for headers and fixed separators.
+     *
+     * @param text String the text to write.
+     * @throws IOException error thrown if the buffer could not be written to the stream.
+     */
+    public void writeText(String text) throws IOException {
+        writeBytes(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write pre-encoded bytes, used to avoid encoding the same separator over and over.
+     *
+     * @param bytes byte[] the bytes to write.
+     * @throws IOException error thrown if the buffer could not be written to the stream.
+     */
+    public void writeBytes(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length) {
+            flushBuffer();
+            outputStream.write(bytes);
+            return;
+        }
+        ensureRoom(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+     * Write a whole number padded with leading zeros up to a minimum number of digits, the same as String.format("%04d")
+     * for a minimum of 4 digits.
+     *
+     * @param value     long the number to write.
+     * @param minDigits int the minimum number of digits to write.
+     * @throws IOException error thrown if the buffer could not be written to the stream.
+     */
+    public void writeNumber(long value, int minDigits) throws IOException {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                writeText(Long.toString(value));
+                return;
+            }
+            writeChar('-');
+            value = -value;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        ensureRoom(Math.max(count, minDigits));
+        for (int i = count; i < minDigits; i++) {
+            buffer[position++] = '0';
+        }
+        while (count > 0) {
+            buffer[position++] = digits[--count];
+        }
+    }
+
+    /**
+     * Write a dollar amount with two decimal places, giving the same text as String.format("%.2f"). The amount is scaled
+     * to cents and rounded, values sitting right on a half cent (where the decimal and binary roundings can disagree)
+     * and values too big for exact cents are handed to String.format so the output never differs.
+     *
+     * @param amount double the amount to write.
+     * @throws IOException error thrown if the buffer could not be written to the stream.
+     */
+    public void writeAmount(double amount) throws IOException {
+        double magnitude = Math.abs(amount);
+        double scaled = magnitude * 100;
+        if (!(scaled < largestFastCents)) {
+            writeText(String.format("%.2f", amount));
+            return;
+        }
+        double fraction = scaled - Math.floor(scaled);
+        if (Math.abs(fraction - 0.5) <= Math.ulp(scaled) * 4) {
+            writeText(String.format("%.2f", amount));
+            return;
+        }
+        long cents = Math.round(scaled);
+        if (amount < 0 || (amount == 0 && 1 / amount < 0)) {
+            writeChar('-');
+        }
+        writeNumber(cents / 100, 1);
+        ensureRoom(3);
+        long remainder = cents % 100;
+        buffer[position++] = '.';
+        buffer[position++] = (byte) ('0' + remainder / 10);
+        buffer[position++] = (byte) ('0' + remainder % 10);
+    }
+
+    /**
+     * Write the buffered bytes to the stream.
+     */
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            outputStream.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    /**
+     * Write the buffered bytes to the stream and flush the stream.
+     *
+     * @throws IOException error thrown if the buffer could not be written to the stream.
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        outputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Footer of a sealed segment: where it is, the range of ids and timestamps it holds and the length of its id filter.
+ * The id filter is a Bloom filter of the segment's employee ids saved between the compressed records and the footer,
+ * only the few bits an id maps to are read when a search checks it.
+ */
+class SegmentInfo {
+
+    final File file;
+    final int number;
+    final long minId;
+    final long maxId;
+    final long recordCount;
+    final long minTimestamp;
+    final long maxTimestamp;
+    final long compressedLength;
+    final long uncompressedLength;
+    //0 for a segment written before segments had an id filter.
+    final long idFilterLength;
+
+    SegmentInfo(File file, int number, long minId, long maxId, long recordCount, long minTimestamp, long maxTimestamp,
+                long compressedLength, long uncompressedLength, long idFilterLength) {
+        this.file = file;
+        this.number = number;
+        this.minId = minId;
+        this.maxId = maxId;
+        this.recordCount = recordCount;
+        this.minTimestamp = minTimestamp;
+        this.maxTimestamp = maxTimestamp;
+        this.compressedLength = compressedLength;
+        this.uncompressedLength = uncompressedLength;
+        this.idFilterLength = idFilterLength;
+    }
+
+    /**
+     * Read the footer at the end of a segment file.
+     *
+     * @param file   File the segment file.
+     * @param number int the number of the segment, from its file name.
+     * @return SegmentInfo the footer.
+     * @throws IOException error thrown if the file can not be read or does not end with a valid footer.
+     */
+    static SegmentInfo read(File file, int number) throws IOException {
+        try (RandomAccessFile segmentFile = new RandomAccessFile(file, "r")) {
+            long length = segmentFile.length();
+            if (length < TaxReportArchive.footerSize) {
+                throw new IOException(file + " is not a tax report segment");
+            }
+            byte[] footer = new byte[TaxReportArchive.footerSize];
+            segmentFile.seek(length - footer.length);
+            segmentFile.readFully(footer);
+            ByteBuffer footerBuffer = ByteBuffer.wrap(footer);
+            //The id filter fills the space between the compressed records and the footer.
+            long idFilterLength = length - footer.length - footerBuffer.getLong(48);
+            SegmentInfo segment = new SegmentInfo(file, number, footerBuffer.getLong(8), footerBuffer.getLong(16),
+                    footerBuffer.getLong(24), footerBuffer.getLong(32), footerBuffer.getLong(40), footerBuffer.getLong(48),
+                    footerBuffer.getLong(56), idFilterLength);
+            if (idFilterLength < 0 || !Arrays.equals(footer, segment.footerBytes())) {
+                throw new IOException(file + " is not a tax report segment or its footer is damaged");
+            }
+            return segment;
+        }
+    }
+
+    byte[] footerBytes() {
+        return ByteBuffer.allocate(TaxReportArchive.footerSize)
+                .putLong(idFilterLength == 0 ? TaxReportArchive.footerMagicWithoutIdFilter : TaxReportArchive.footerMagic)
+                .putLong(minId).putLong(maxId).putLong(recordCount)
+                .putLong(minTimestamp).putLong(maxTimestamp)
+                .putLong(compressedLength).putLong(uncompressedLength)
+                .array();
+    }
+
+    /**
+     * Check the footer and the id filter to see whether the segment can hold records of an employee. Only the bits of
+     * the id filter the id maps to are read.
+     *
+     * @param employeeId long the employee id.
+     * @return boolean false if the id is outside the segment's id range or the id filter rules it out.
+     * @throws IOException error thrown if the id filter can not be read.
+     */
+    boolean mayHoldEmployee(long employeeId) throws IOException {
+        if (employeeId < minId || employeeId > maxId) {
+            return false;
+        }
+        if (idFilterLength == 0) {
+            return true;
+        }
+        long filterBits = idFilterLength * 8;
+        try (RandomAccessFile segmentFile = new RandomAccessFile(file, "r")) {
+            for (int hash = 0; hash < TaxReportArchive.idFilterHashes; hash++) {
+                long bit = idFilterBit(employeeId, hash, filterBits);
+                segmentFile.seek(compressedLength + (bit >>> 3));
+                if ((segmentFile.readByte() & (1 << (bit & 7))) == 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Build the id filter of a segment, sized for the number of distinct ids.
+     *
+     * @param employeeIds long[] the employee id of every record of the segment, in any order (the array is sorted).
+     * @param count       int the number of ids in the array.
+     * @return byte[] the id filter, at least 8 bytes so a segment with a filter is told apart from one without.
+     */
+    static byte[] buildIdFilter(long[] employeeIds, int count) {
+        Arrays.sort(employeeIds, 0, count);
+        long distinctIds = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || employeeIds[i] != employeeIds[i - 1]) {
+                distinctIds++;
+            }
+        }
+        byte[] idFilter = new byte[(int) Math.max(8, (distinctIds * TaxReportArchive.idFilterBitsPerId + 7) / 8)];
+        long filterBits = idFilter.length * 8L;
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && employeeIds[i] == employeeIds[i - 1]) {
+                continue;
+            }
+            for (int hash = 0; hash < TaxReportArchive.idFilterHashes; hash++) {
+                long bit = idFilterBit(employeeIds[i], hash, filterBits);
+                idFilter[(int) (bit >>> 3)] |= (byte) (1 << (bit & 7));
+            }
+        }
+        return idFilter;
+    }
+
+    /**
+     * Work out one of the bits of the id filter an employee id maps to. Two hashes are taken from one 64 bit mix of the
+     * id and combined as first + hash * second, which spreads the bits as well as separate hash functions would.
+     */
+    private static long idFilterBit(long employeeId, int hash, long filterBits) {
+        long mixed = employeeId * 0x9E3779B97F4A7C15L;
+        mixed ^= mixed >>> 31;
+        mixed *= 0xBF58476D1CE4E5B9L;
+        mixed ^= mixed >>> 29;
+        long first = mixed & 0xFFFFFFFFL;
+        long second = (mixed >>> 32) | 1;
+        return Math.floorMod(first + hash * second, filterBits);
+    }
+
+    /**
+     * Open a line reader over the decompressed records of the segment.
+     *
+     * @return ReportLineReader positioned before the first record.
+     * @throws IOException error thrown if the segment file can not be opened.
+     */
+    ReportLineReader openReader() throws IOException {
+        //The stream's own Inflater is released when the reader is closed.
+        return new ReportLineReader(new InflaterInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16)), 1 << 16);
+    }
+
+    /**
+     * Decompress and parse every record of the segment.
+     *
+     * @return SegmentRecords the records.
+     * @throws IOException error thrown if the segment can not be read, holds an invalid line, or has a different number of records than its footer says.
+     */
+    SegmentRecords readRecords() throws IOException {
+        SegmentRecords segmentRecords = new SegmentRecords(this, (int) recordCount);
+        try (ReportLineReader lineReader = openReader()) {
+            while (lineReader.nextLine()) {
+                TaxReportEntry taxReportEntry = TaxReportFileManager.parseTaxReportLine(lineReader);
+                if (taxReportEntry == null) {
+                    continue;
+                }
+                if (segmentRecords.count == recordCount) {
+                    throw new IOException(file + " holds more records than its footer says");
+                }
+                segmentRecords.add(taxReportEntry);
+            }
+        }
+        if (segmentRecords.count != recordCount) {
+            throw new IOException(file + " holds fewer records than its footer says");
+        }
+        return segmentRecords;
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * The records of one segment, decoded into primitive arrays in the order they were sealed.
+ */
+class SegmentRecords {
+
+    final SegmentInfo segment;
+    final long[] employeeIds;
+    final double[] employeeIncomes;
+    final double[] taxes;
+    final long[] timestamps;
+    int count = 0;
+
+    SegmentRecords(SegmentInfo segment, int capacity) {
+        this.segment = segment;
+        this.employeeIds = new long[capacity];
+        this.employeeIncomes = new double[capacity];
+        this.taxes = new double[capacity];
+        this.timestamps = new long[capacity];
+    }
+
+    void add(TaxReportEntry taxReportEntry) {
+        employeeIds[count] = taxReportEntry.getEmployeeId();
+        employeeIncomes[count] = taxReportEntry.getEmployeeIncome();
+        taxes[count] = taxReportEntry.getTax();
+        timestamps[count] = taxReportEntry.getTimestamp();
+        count++;
+    }
+
+    TaxReportEntry getEntry(int index) {
+        return new TaxReportEntry(employeeIds[index], employeeIncomes[index], taxes[index], timestamps[index]);
+    }
+}
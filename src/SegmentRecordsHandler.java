@@ -0,0 +1,15 @@
+import java.io.IOException;
+
+/**
+ * Callback used by TaxReportArchive.scanSegments to receive the records of each segment.
+ */
+interface SegmentRecordsHandler {
+
+    /**
+     * Receive the records of one segment.
+     *
+     * @param segmentRecords SegmentRecords the records of the segment.
+     * @throws IOException handlers may pass their errors on.
+     */
+    void handle(SegmentRecords segmentRecords) throws IOException;
+}
@@ -33,7 +33,7 @@ public class TaxCalculator {
         if (taxRates != null) {
             do {
                 //Prompt user for id
-                int employeeId = TaxSystemUI.promptForID("\nPlease enter the four digit Employee ID to calculate tax based on income:");
+                long employeeId = TaxSystemUI.promptForID("\nPlease enter the Employee ID (four or more digits) to calculate tax based on income:");
                 //Prompt user for income
                 double employeeIncome = TaxSystemUI.promptForIncome(employeeId);
                 //Calculate Tax
@@ -69,23 +69,65 @@ public class TaxCalculator {
      * @return
      */
     public static double taxCalculator(LinkedHashSet<TaxRate> taxRates, double income) {
-        //Initiate value as 0
-        double totalTax = 0.0;
-        //Iterate through tax rates to find where the income sits.
-        for (TaxRate taxRate : taxRates) {
-            if (income >= taxRate.getLowerThreshold() && income <= taxRate.getHigherThreshold()) {
+        //Find where the income sits.
+        TaxRate taxRate = findTaxRate(taxRates.toArray(new TaxRate[0]), income);
+        if (taxRate == null) {
+            return 0.0;
+        }
 
-                //Print the taxRate
-                System.out.println("\n" + taxRate + "\n");
+        //Print the taxRate
+        System.out.println("\n" + taxRate + "\n");
 
-                //Get the base tax to be charged for being in the threshold bracket
-                totalTax = taxRate.getBaseTax();
-                if (taxRate.getRateCents() != 0) {
-                    //Perform the calculation using the formula in the assignment criteria.
-                    totalTax = +(income - taxRate.getRateThreshold()) * (taxRate.getRateCents() / 100);
-                }
+        return taxForBracket(taxRate, income);
+    }
+
+    /**
+     * Calculates the tax for many incomes at once. Unlike taxCalculator nothing is printed and the rates are only
+     * converted to an array once, so this is the path used for bulk work such as importing incomes from a file.
+     *
+     * @param taxRates LinkedHashSet<TaxRate> the tax rates to calculate with.
+     * @param incomes  double[] the incomes to calculate tax for.
+     * @param taxes    double[] array that receives the tax for each income at the same position.
+     * @param count    int the number of incomes to calculate from the start of the arrays.
+     */
+    public static void calculateTaxBatch(LinkedHashSet<TaxRate> taxRates, double[] incomes, double[] taxes, int count) {
+        TaxRate[] taxRateArray = taxRates.toArray(new TaxRate[0]);
+        for (int i = 0; i < count; i++) {
+            TaxRate taxRate = findTaxRate(taxRateArray, incomes[i]);
+            taxes[i] = taxRate == null ? 0.0 : taxForBracket(taxRate, incomes[i]);
+        }
+    }
+
+    /**
+     * Find the tax rate bracket that the income sits in.
+     *
+     * @param taxRates TaxRate[] the tax rates to look through.
+     * @param income   double the income to find the bracket for.
+     * @return TaxRate or null if the income is not within any bracket.
+     */
+    public static TaxRate findTaxRate(TaxRate[] taxRates, double income) {
+        for (TaxRate taxRate : taxRates) {
+            if (income >= taxRate.getLowerThreshold() && income <= taxRate.getHigherThreshold()) {
+                return taxRate;
             }
         }
+        return null;
+    }
+
+    /**
+     * Calculates the tax for an income within the given bracket.
+     *
+     * @param taxRate TaxRate the bracket the income sits in.
+     * @param income  double the income to calculate tax for.
+     * @return double the total tax.
+     */
+    public static double taxForBracket(TaxRate taxRate, double income) {
+        //Get the base tax to be charged for being in the threshold bracket
+        double totalTax = taxRate.getBaseTax();
+        if (taxRate.getRateCents() != 0) {
+            //Perform the calculation using the formula in the assignment criteria, adding to the base tax.
+            totalTax += (income - taxRate.getRateThreshold()) * (taxRate.getRateCents() / 100);
+        }
         return totalTax;
     }
 
@@ -0,0 +1,343 @@
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * TaxCommandLine runs the non-interactive commands of the Tax Management System. These are used when the program is
+ * started with arguments, for example by scripts or scheduled jobs, instead of going through the menus of TaxSystemUI.
+ */
+public class TaxCommandLine {
+
+    /**
+     * Run the command given in the cli arguments.
+     *
+     * @param args String[] cli arguments, the first one is the command name.
+     * @return int exit status for the process, 0 means success.
+     */
+    public static int runCommand(String[] args) {
+        try {
+            switch (args[0].toLowerCase()) {
+                case "export":
+                    return exportCommand(args);
+                case "import":
+                    return importCommand(args);
+                case "loadtest":
+                    return loadTestCommand(args);
+                case "verify":
+                    return verifyCommand(args);
+                case "search":
+                    return searchCommand(args);
+                case "range":
+                    return rangeCommand(args);
+                case "withhold":
+                    return withholdCommand(args);
+                case "simulate":
+                    return simulateCommand(args);
+                case "archive":
+                    return archiveCommand(args);
+                case "stresstest":
+                    return new TaxReportStressTest(Arrays.copyOfRange(args, 1, args.length)).run() ? 0 : 1;
+                case "selfcheck":
+                    return new TaxReportSelfCheck().run() ? 0 : 1;
+                case "stressworker":
+                    //Started by stresstest in its own processes, not meant to be run by hand.
+                    return TaxReportStressTest.runWorker(args);
+                case "help":
+                    printUsage();
+                    return 0;
+                default:
+                    System.out.println("[ Invalid Command ] : " + args[0]);
+                    printUsage();
+                    return 2;
+            }
+        } catch (FileNotFoundException e) {
+            System.out.println("[ File ] Issue : " + e.getMessage());
+            return 1;
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("[ " + args[0] + " ] Issue : " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Print the list of commands and their arguments.
+     */
+    public static void printUsage() {
+        System.out.println("Usage: java TaxManagementSystem [command arguments...]" +
+                "\nWith no command the interactive menu is started. Commands:" +
+                "\n  export <csv|jsonl> <outputFile> [taxReportFile]" +
+                "\n  import <csvOrJsonLinesFile> [taxRatesFile]" +
+                "\n  loadtest [duration=60] [rate=100] [search=0.1] [employees=10000] [firstId=0] [interval=5] [seed=n] [rates=taxrates.txt] [allowExisting=false]" +
+                "\n  verify [taxReportFile] [taxRatesFile] [tolerance=0.01]" +
+                "\n  search <employeeId> [asOfTime] [taxReportFile]" +
+                "\n  range <fromTime> <toTime> [taxReportFile]" +
+                "\n  (times are epoch milliseconds, an ISO instant such as 2024-07-01T00:00:00Z, or a local date/time such as 2024-07-01 or 2024-07-01T09:30)" +
+                "\n  withhold <weekly|fortnightly|paysPerYear> <csvOrJsonLinesPayFile> <outputFile> [taxRatesFile]" +
+                "\n  simulate [proposedRatesFile...] [base=taxrates.txt] [report=taxreport.txt]" +
+                "\n  (with no proposed rates files, their paths are read one per line until a blank line)" +
+                "\n  archive [taxReportFile] [olderThanTime]" +
+                "\n  (records from the last 30 days stay in the active file unless olderThanTime is given)" +
+                "\n  stresstest [processes=4] [threads=4] [records=5000] [batch=1] [minPercent=80]" +
+                "\n  selfcheck" +
+                "\n  help");
+    }
+
+    /**
+     * export <csv|jsonl> <outputFile> [taxReportFile]
+     */
+    private static int exportCommand(String[] args) throws IOException {
+        if (args.length < 3) {
+            printUsage();
+            return 2;
+        }
+        String taxReportPathName = args.length > 3 ? args[3] : TaxReportFileManager.taxReportFileName;
+        long startTime = System.nanoTime();
+        long exported = TaxReportTransfer.exportTaxReport(taxReportPathName, args[2], args[1]);
+        System.out.println("[ Export ] " + exported + " records written to " + args[2] + elapsed(startTime));
+        return 0;
+    }
+
+    /**
+     * import <csvOrJsonLinesFile> [taxRatesFile]
+     */
+    private static int importCommand(String[] args) throws IOException {
+        if (args.length < 2) {
+            printUsage();
+            return 2;
+        }
+        LinkedHashSet<TaxRate> taxRates = args.length > 2
+                ? TaxRateFileReader.readTaxRatesFile(args[2])
+                : TaxRateFileReader.readTaxRatesFile();
+        long startTime = System.nanoTime();
+        long imported = TaxReportTransfer.importIncomes(args[1], taxRates);
+        System.out.println("[ Import ] " + imported + " records written to " + TaxReportFileManager.taxReportFileName + elapsed(startTime));
+        return 0;
+    }
+
+    /**
+     * loadtest [name=value...]
+     */
+    private static int loadTestCommand(String[] args) throws IOException {
+        TaxLoadGenerator loadGenerator = new TaxLoadGenerator(Arrays.copyOfRange(args, 1, args.length));
+        loadGenerator.run();
+        return 0;
+    }
+
+    /**
+     * verify [taxReportFile] [taxRatesFile] [tolerance]
+     * The exit status is 1 if any record does not match, so it can be used as a check in scheduled jobs.
+     */
+    private static int verifyCommand(String[] args) throws IOException {
+        String taxReportPathName = args.length > 1 ? args[1] : TaxReportFileManager.taxReportFileName;
+        LinkedHashSet<TaxRate> taxRates = args.length > 2
+                ? TaxRateFileReader.readTaxRatesFile(args[2])
+                : TaxRateFileReader.readTaxRatesFile();
+        double tolerance = args.length > 3 ? Double.parseDouble(args[3]) : TaxReportVerifier.defaultTolerance;
+        long mismatches = TaxReportVerifier.verifyTaxReport(taxReportPathName, taxRates, tolerance, System.out);
+        return mismatches == 0 ? 0 : 1;
+    }
+
+    /**
+     * search <employeeId> [asOfTime] [taxReportFile]
+     */
+    private static int searchCommand(String[] args) throws IOException {
+        if (args.length < 2) {
+            printUsage();
+            return 2;
+        }
+        long employeeId = Long.parseLong(args[1]);
+        long asOf = args.length > 2 ? parseTime(args[2]) : Long.MAX_VALUE;
+        String taxReportPathName = args.length > 3 ? args[3] : TaxReportFileManager.taxReportFileName;
+        TaxReportEntry taxReportEntry = TaxReportSearch.searchIDAsOf(taxReportPathName, employeeId, asOf);
+        if (taxReportEntry == null) {
+            System.out.println("The Employee ID: " + String.format("%04d", employeeId) + " was not found.");
+            return 1;
+        }
+        System.out.println(taxReportEntry);
+        return 0;
+    }
+
+    /**
+     * range <fromTime> <toTime> [taxReportFile]
+     * The records are printed in the same columns as the tax report file.
+     */
+    private static int rangeCommand(String[] args) throws IOException {
+        if (args.length < 3) {
+            printUsage();
+            return 2;
+        }
+        long fromTimestamp = parseTime(args[1]);
+        long toTimestamp = parseTime(args[2]);
+        String taxReportPathName = args.length > 3 ? args[3] : TaxReportFileManager.taxReportFileName;
+        final ReportOutputBuffer outputBuffer = new ReportOutputBuffer(System.out, 1 << 16);
+        long found = TaxReportSearch.searchBetween(taxReportPathName, fromTimestamp, toTimestamp, (lineNumber, entry) -> {
+            outputBuffer.writeNumber(entry.getEmployeeId(), 4);
+            outputBuffer.writeText("    ");
+            outputBuffer.writeAmount(entry.getEmployeeIncome());
+            outputBuffer.writeText("    ");
+            outputBuffer.writeAmount(entry.getTax());
+            outputBuffer.writeText("    ");
+            outputBuffer.writeNumber(entry.getTimestamp(), 1);
+            outputBuffer.writeChar('\n');
+        });
+        outputBuffer.flush();
+        System.out.println("[ Range ] " + found + " records");
+        return 0;
+    }
+
+    /**
+     * withhold <weekly|fortnightly|paysPerYear> <csvOrJsonLinesPayFile> <outputFile> [taxRatesFile]
+     */
+    private static int withholdCommand(String[] args) throws IOException {
+        if (args.length < 4) {
+            printUsage();
+            return 2;
+        }
+        int periodsPerYear = WithholdingEngine.periodsPerYear(args[1]);
+        WithholdingEngine withholdingEngine = new WithholdingEngine(args.length > 4 ? args[4] : "taxrates.txt");
+        long startTime = System.nanoTime();
+        long written = withholdingEngine.writeWithholdings(args[2], args[3], periodsPerYear);
+        System.out.println("[ Withhold ] " + written + " pays written to " + args[3] + elapsed(startTime));
+        return 0;
+    }
+
+    /**
+     * simulate [proposedRatesFile...] [base=taxrates.txt] [report=taxreport.txt]
+     * The workforce is loaded once, then each proposed rates file is compared with the base rates.
+     */
+    private static int simulateCommand(String[] args) throws IOException {
+        String baseRatesPathName = "taxrates.txt";
+        String taxReportPathName = TaxReportFileManager.taxReportFileName;
+        List<String> proposedRatesPathNames = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("base=")) {
+                baseRatesPathName = args[i].substring("base=".length());
+            } else if (args[i].startsWith("report=")) {
+                taxReportPathName = args[i].substring("report=".length());
+            } else {
+                proposedRatesPathNames.add(args[i]);
+            }
+        }
+
+        long startTime = System.nanoTime();
+        TaxRate[] baseRates = TaxRateFileReader.readTaxRatesFile(baseRatesPathName).toArray(new TaxRate[0]);
+        TaxRateSimulation simulation = TaxRateSimulation.load(taxReportPathName, baseRates);
+        System.out.println("[ Simulate ] " + simulation.getEmployeeCount() + " employees loaded from " + taxReportPathName + elapsed(startTime));
+        printSimulationResult(baseRatesPathName + " (base)", simulation.getBaseResult(), simulation.getBaseResult(), "");
+
+        if (!proposedRatesPathNames.isEmpty()) {
+            for (String proposedRatesPathName : proposedRatesPathNames) {
+                simulateRatesFile(simulation, proposedRatesPathName);
+            }
+            return 0;
+        }
+        //Interactive: keep comparing rates files until a blank line or the end of the input.
+        BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+        while (true) {
+            System.out.println("\nPlease enter the path of a proposed tax rates file (or a blank line to finish):");
+            String line = input.readLine();
+            if (line == null || line.trim().isEmpty()) {
+                return 0;
+            }
+            try {
+                simulateRatesFile(simulation, line.trim());
+            } catch (FileNotFoundException e) {
+                System.out.println("[ Invalid File Path ] The path \"" + line.trim() + "\" was not found.");
+            }
+        }
+    }
+
+    private static void simulateRatesFile(TaxRateSimulation simulation, String proposedRatesPathName) throws FileNotFoundException {
+        TaxRate[] proposedRates = TaxRateFileReader.readTaxRatesFile(proposedRatesPathName).toArray(new TaxRate[0]);
+        long startTime = System.nanoTime();
+        TaxRateSimulation.SimulationResult result = simulation.simulate(proposedRates);
+        printSimulationResult(proposedRatesPathName, result, simulation.getBaseResult(), elapsed(startTime));
+    }
+
+    private static void printSimulationResult(String name, TaxRateSimulation.SimulationResult result,
+                                              TaxRateSimulation.SimulationResult baseResult, String timing) {
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append(String.format("%n[ Simulate ] %s%s%n", name, timing));
+        stringBuilder.append(String.format("  Total tax: $%.2f (change $%.2f)%n", result.totalTax, result.totalTax - baseResult.totalTax));
+        for (int i = 0; i < result.taxRates.length; i++) {
+            stringBuilder.append(String.format("  %s%n      %d employees, income $%.2f, tax $%.2f%n", result.taxRates[i],
+                    result.bracketCounts[i], result.bracketIncomes[i], result.bracketTaxes[i]));
+        }
+        if (result.unmatchedCount > 0) {
+            stringBuilder.append(String.format("  Not in any bracket: %d employees%n", result.unmatchedCount));
+        }
+        stringBuilder.append(String.format("  Pay less: %d employees, pay more: %d employees", result.winners, result.losers));
+        System.out.println(stringBuilder);
+    }
+
+    /**
+     * archive [taxReportFile] [olderThanTime]
+     * Seal the records of the tax report file older than the time into compressed segments and cut them from the file,
+     * the newer records stay in it for the searches that ask for them most.
+     */
+    private static int archiveCommand(String[] args) throws IOException {
+        String taxReportPathName = args.length > 1 ? args[1] : TaxReportFileManager.taxReportFileName;
+        long olderThan = args.length > 2 ? parseTime(args[2]) : System.currentTimeMillis() - TaxReportArchive.defaultActiveMillis;
+        long startTime = System.nanoTime();
+        List<SegmentInfo> sealed = TaxReportArchive.sealTaxReport(taxReportPathName, olderThan);
+        long records = 0;
+        long compressedBytes = 0;
+        long uncompressedBytes = 0;
+        for (SegmentInfo segment : sealed) {
+            records += segment.recordCount;
+            compressedBytes += segment.compressedLength;
+            uncompressedBytes += segment.uncompressedLength;
+        }
+        System.out.println(String.format("[ Archive ] %d records older than %s sealed into %d segments (%d bytes compressed to %d) in %s",
+                records, Instant.ofEpochMilli(olderThan), sealed.size(), uncompressedBytes, compressedBytes,
+                TaxReportArchive.getSegmentDirectory(taxReportPathName)) + elapsed(startTime));
+        return 0;
+    }
+
+    /**
+     * Parse a time given on the command line: epoch milliseconds, an ISO instant, or a local date or date/time in the
+     * system time zone (a date on its own means the start of that day).
+     *
+     * @param text String the time as typed.
+     * @return long the time in epoch milliseconds.
+     * @throws IllegalArgumentException if the text is not a time in any of those forms.
+     */
+    public static long parseTime(String text) {
+        if (text.matches("\\d+")) {
+            return Long.parseLong(text);
+        }
+        try {
+            return Instant.parse(text).toEpochMilli();
+        } catch (DateTimeParseException notInstant) {
+            //Try the local forms below
+        }
+        ZoneId zone = ZoneId.systemDefault();
+        try {
+            return LocalDateTime.parse(text).atZone(zone).toInstant().toEpochMilli();
+        } catch (DateTimeParseException notDateTime) {
+            //Try a date on its own below
+        }
+        try {
+            return LocalDate.parse(text).atStartOfDay(zone).toInstant().toEpochMilli();
+        } catch (DateTimeParseException notDate) {
+            throw new IllegalArgumentException("Not a valid time: " + text);
+        }
+    }
+
+    /**
+     * Format the time since startTime for the command summaries.
+     */
+    private static String elapsed(long startTime) {
+        return String.format(" in %.3f seconds", (System.nanoTime() - startTime) / 1e9);
+    }
+}
@@ -0,0 +1,321 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TaxLoadGenerator replays a synthetic workload against the system to reproduce production volumes. It generates
+ * employee ids and incomes spread across the brackets of the tax rates file and runs a mix of calculate operations
+ * (calculate the tax and append the record with TaxReportFileManager) and search operations (look up the employee
+ * with TaxReportSearch, the same as the Search Tax menu option) at a target rate for a set duration.
+ * Every interval it prints the throughput, latency percentiles, growth of taxreport.txt and heap use, so slowdowns
+ * that only appear as the file grows show up over the length of a soak test.
+ *
+ * The records are appended to taxreport.txt in the current working directory, so it should be run from a scratch
+ * directory. It refuses to add to an existing taxreport.txt unless allowExisting=true is given.
+ */
+public class TaxLoadGenerator {
+
+    private double durationSeconds = 60;
+    //Target operations per second, 0 means as fast as possible.
+    private double targetRate = 100;
+    //Share of the operations that are searches, the rest are calculations.
+    private double searchRatio = 0.1;
+    //Number of distinct employee ids to generate (ids firstId to firstId + employees - 1).
+    private int employees = 10000;
+    private long firstId = 0;
+    private double reportIntervalSeconds = 5;
+    private long seed = System.nanoTime();
+    private String taxRatesPathName = "taxrates.txt";
+    private boolean allowExisting = false;
+
+    /**
+     * Build a load generator from "name=value" options, any option not given keeps its default.
+     * Options: duration (seconds), rate (operations per second, 0 for unlimited), search (ratio 0 to 1),
+     * employees (number of distinct ids), firstId (lowest id, use a large one for wide ids), interval (seconds between
+     * reports), seed, rates (tax rates file), allowExisting.
+     *
+     * @param options String[] the options, each as "name=value".
+     * @throws IllegalArgumentException if an option is unknown or its value is invalid.
+     */
+    public TaxLoadGenerator(String[] options) {
+        for (String option : options) {
+            int equals = option.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Options must be given as name=value: " + option);
+            }
+            String name = option.substring(0, equals);
+            String value = option.substring(equals + 1);
+            switch (name) {
+                case "duration":
+                    durationSeconds = Double.parseDouble(value);
+                    break;
+                case "rate":
+                    targetRate = Double.parseDouble(value);
+                    break;
+                case "search":
+                    searchRatio = Double.parseDouble(value);
+                    break;
+                case "employees":
+                    employees = Integer.parseInt(value);
+                    break;
+                case "firstId":
+                    firstId = Long.parseLong(value);
+                    break;
+                case "interval":
+                    reportIntervalSeconds = Double.parseDouble(value);
+                    break;
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "rates":
+                    taxRatesPathName = value;
+                    break;
+                case "allowExisting":
+                    allowExisting = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if (durationSeconds <= 0 || targetRate < 0 || searchRatio < 0 || searchRatio > 1
+                || employees < 1 || firstId < 0 || firstId > 999999999999999999L - employees || reportIntervalSeconds <= 0) {
+            throw new IllegalArgumentException("Option out of range, expected duration > 0, rate >= 0, 0 <= search <= 1, "
+                    + "employees >= 1, ids of at most 18 digits and interval > 0");
+        }
+    }
+
+    /**
+     * Run the workload for the configured duration, printing a report line every interval and a summary at the end.
+     * Operations are scheduled at fixed times from the start, and their latency is measured from the scheduled time,
+     * so when the system falls behind the queueing delay is included rather than hidden.
+     *
+     * @return long the number of operations that were run.
+     * @throws IOException error thrown if the tax rates or tax report files can not be read or written.
+     */
+    public long run() throws IOException {
+        File taxReportFile = new File(TaxReportFileManager.taxReportFileName);
+        if (taxReportFile.exists() && !allowExisting) {
+            throw new IOException(taxReportFile.getAbsolutePath() + " already exists, run the load test from a scratch "
+                    + "directory or give allowExisting=true to add to it");
+        }
+
+        LinkedHashSet<TaxRate> taxRateSet = TaxRateFileReader.readTaxRatesFile(taxRatesPathName);
+        TaxRate[] taxRates = taxRateSet.toArray(new TaxRate[0]);
+        if (taxRates.length == 0) {
+            throw new IOException("No tax rates were found in " + taxRatesPathName);
+        }
+        Random random = new Random(seed);
+
+        System.out.println("[ Load ] Running for " + durationSeconds + "s at " + (targetRate > 0 ? targetRate + " ops/s" : "full speed")
+                + " with " + (searchRatio * 100) + "% searches over " + employees + " employees (seed=" + seed + ")");
+        System.out.println("[ Load ] Appending to " + taxReportFile.getAbsolutePath());
+
+        LatencyHistogram intervalCalculations = new LatencyHistogram();
+        LatencyHistogram intervalSearches = new LatencyHistogram();
+        LatencyHistogram totalCalculations = new LatencyHistogram();
+        LatencyHistogram totalSearches = new LatencyHistogram();
+
+        long startTime = System.nanoTime();
+        long endTime = startTime + (long) (durationSeconds * 1e9);
+        long reportInterval = (long) (reportIntervalSeconds * 1e9);
+        long nextReportTime = startTime + reportInterval;
+        double operationInterval = targetRate > 0 ? 1e9 / targetRate : 0;
+        long lastFileLength = taxReportFile.length();
+        long operations = 0;
+
+        while (true) {
+            //Open loop: each operation has a scheduled start time independent of how long earlier ones took.
+            long scheduledTime = startTime + (long) (operations * operationInterval);
+            long now = System.nanoTime();
+            //With no target rate the schedule never moves past the start, so the duration is checked against the clock.
+            if (scheduledTime >= endTime || now >= endTime && targetRate == 0) {
+                break;
+            }
+            if (scheduledTime > now) {
+                LockSupport.parkNanos(scheduledTime - now);
+            } else if (targetRate == 0) {
+                scheduledTime = now;
+            }
+
+            long employeeId = firstId + random.nextInt(employees);
+            if (random.nextDouble() < searchRatio) {
+                runSearch(employeeId);
+                long latency = System.nanoTime() - scheduledTime;
+                intervalSearches.record(latency);
+                totalSearches.record(latency);
+            } else {
+                runCalculation(taxRates, employeeId, randomIncome(taxRates, random));
+                long latency = System.nanoTime() - scheduledTime;
+                intervalCalculations.record(latency);
+                totalCalculations.record(latency);
+            }
+            operations++;
+
+            now = System.nanoTime();
+            if (now >= nextReportTime) {
+                long fileLength = taxReportFile.length();
+                printReport("t=" + String.format("%.0fs", (now - startTime) / 1e9), intervalCalculations, intervalSearches,
+                        reportInterval, fileLength, fileLength - lastFileLength);
+                lastFileLength = fileLength;
+                intervalCalculations.reset();
+                intervalSearches.reset();
+                nextReportTime += reportInterval;
+            }
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+        System.out.println();
+        printReport("Total", totalCalculations, totalSearches, elapsed, taxReportFile.length(), -1);
+        return operations;
+    }
+
+    /**
+     * Calculate operation: calculate the tax and append the record, the same as one pass of the Calculate Tax option
+     * (the bracket description is not printed).
+     */
+    private static void runCalculation(TaxRate[] taxRates, long employeeId, double employeeIncome) throws IOException {
+        TaxRate taxRate = TaxCalculator.findTaxRate(taxRates, employeeIncome);
+        double totalTax = taxRate == null ? 0.0 : TaxCalculator.taxForBracket(taxRate, employeeIncome);
+        if (!TaxReportFileManager.writeTaxReportEntry(employeeId, employeeIncome, totalTax)) {
+            throw new IOException("The record could not be written to " + TaxReportFileManager.taxReportFileName);
+        }
+    }
+
+    /**
+     * Search operation: look up the latest record of the employee in taxreport.txt and its sealed segments, the same
+     * as one search of the Search Tax option.
+     */
+    private static TaxReportEntry runSearch(long employeeId) throws IOException {
+        if (!new File(TaxReportFileManager.taxReportFileName).exists()) {
+            return null;
+        }
+        return TaxReportSearch.searchLatest(TaxReportFileManager.taxReportFileName, employeeId);
+    }
+
+    /**
+     * Generate an income in a randomly chosen bracket, so every bracket is exercised equally. The top bracket has no
+     * upper limit so incomes there go up to three times its lower threshold. Incomes are whole cents.
+     */
+    private static double randomIncome(TaxRate[] taxRates, Random random) {
+        TaxRate taxRate = taxRates[random.nextInt(taxRates.length)];
+        double lower = taxRate.getLowerThreshold();
+        double higher = taxRate.getHigherThreshold() == Double.MAX_VALUE ? Math.max(lower * 3, lower + 100000) : taxRate.getHigherThreshold();
+        return Math.round((lower + random.nextDouble() * (higher - lower)) * 100) / 100.0;
+    }
+
+    /**
+     * Print one report line with throughput and latency percentiles of both operation types, file size and heap use.
+     */
+    private static void printReport(String label, LatencyHistogram calculations, LatencyHistogram searches, long periodNanos,
+                                    long fileLength, long fileGrowth) {
+        Runtime runtime = Runtime.getRuntime();
+        long operations = calculations.getCount() + searches.getCount();
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("[ Load ] %-6s %8d ops %9.1f ops/s", label, operations, operations / (periodNanos / 1e9)));
+        report.append(" | calc ").append(calculations.summary());
+        report.append(" | search ").append(searches.summary());
+        report.append(String.format(" | file %.2fMB", fileLength / 1048576.0));
+        if (fileGrowth >= 0) {
+            report.append(String.format(" (+%.2fMB)", fileGrowth / 1048576.0));
+        }
+        report.append(String.format(" | heap %.1fMB", (runtime.totalMemory() - runtime.freeMemory()) / 1048576.0));
+        System.out.println(report);
+    }
+}
+
+/**
+ * LatencyHistogram counts latencies in logarithmic buckets with 32 linear steps per power of two (about 3% precision),
+ * so any number of samples can be recorded in fixed memory and percentiles read back at any time.
+ */
+class LatencyHistogram {
+
+    private static final int subBucketBits = 5;
+    private static final int subBuckets = 1 << subBucketBits;
+
+    private final long[] counts = new long[(64 - subBucketBits) * subBuckets];
+    private long count = 0;
+    private long max = 0;
+
+    /**
+     * Record one latency.
+     *
+     * @param nanos long the latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts[bucketIndex(nanos)]++;
+        count++;
+        max = Math.max(max, nanos);
+    }
+
+    /**
+     * Forget every recorded latency.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        max = 0;
+    }
+
+    /**
+     * Get the number of recorded latencies.
+     *
+     * @return long the count.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the latency below which the given share of the recorded latencies fall.
+     *
+     * @param percentile double between 0 and 100.
+     * @return long the latency in nanoseconds (the lower bound of its bucket), 0 if nothing was recorded.
+     */
+    public long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Get the percentiles as text for the reports, in milliseconds.
+     *
+     * @return String for example "n=100 p50=0.120ms p90=... max=...".
+     */
+    public String summary() {
+        return String.format("n=%d p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms", count,
+                percentile(50) / 1e6, percentile(90) / 1e6, percentile(99) / 1e6, percentile(99.9) / 1e6, max / 1e6);
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < subBuckets) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - subBucketBits)) & (subBuckets - 1);
+        return (exponent - subBucketBits + 1) * subBuckets + subBucket;
+    }
+
+    private static long bucketValue(int index) {
+        if (index < subBuckets) {
+            return index;
+        }
+        int exponent = index / subBuckets + subBucketBits - 1;
+        return (long) (subBuckets + index % subBuckets) << (exponent - subBucketBits);
+    }
+}
@@ -10,11 +10,16 @@ public class TaxManagementSystem {
 
 
     /**
-     * Main Program Begins here.
+     * Main Program Begins here. If a command is given in the cli arguments it is run by TaxCommandLine instead of
+     * starting the interactive menu.
      *
      * @param args String[] cli arguments
      */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            System.exit(TaxCommandLine.runCommand(args));
+        }
+
         //Value to control loop.
         boolean stayInProgram = true;
 
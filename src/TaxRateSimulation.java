@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * TaxRateSimulation answers "what if" questions about proposed tax rates: how much tax would the workforce in the tax
+ * report owe under a proposed rates file, how much in each bracket, and how many employees would pay less or more than
+ * under the current rates.
+ *
+ * The latest income of each employee is read once, sorted, and summed into prefix sums (in whole cents, so the sums
+ * are exact). Within a bracket the tax is base tax plus a rate over a threshold, so the tax of every income in a range
+ * of the sorted list follows from the number of incomes and their sum. A scenario is then worked out with two binary
+ * searches per bracket instead of a pass over every employee, so many rates files can be compared one after another.
+ * Winners and losers are counted the same way: between the bracket bounds of both rate sets the difference in tax is a
+ * straight line, so the employees paying less form one run of the sorted list that a binary search finds.
+ */
+public class TaxRateSimulation {
+
+    //Tax changes smaller than this (half a cent) count as unchanged when counting winners and losers.
+    public static final double unchangedTolerance = 0.005;
+
+    //Latest income of each employee in cents, sorted.
+    private final long[] incomeCents;
+    //prefixCents[i] is the sum of the first i incomes in cents.
+    private final long[] prefixCents;
+    private final TaxRate[] baseRates;
+    private final SimulationResult baseResult;
+
+    private TaxRateSimulation(long[] incomeCents, TaxRate[] baseRates) {
+        this.incomeCents = incomeCents;
+        this.prefixCents = new long[incomeCents.length + 1];
+        for (int i = 0; i < incomeCents.length; i++) {
+            prefixCents[i + 1] = prefixCents[i] + incomeCents[i];
+        }
+        this.baseRates = baseRates;
+        this.baseResult = simulate(baseRates);
+    }
+
+    /**
+     * Read the latest income of every employee in a tax report file (sealed segments included) and prepare the sorted
+     * incomes and prefix sums.
+     *
+     * @param taxReportPathName String path to the tax report file.
+     * @param baseRates         TaxRate[] the current tax rates that proposed rates are compared against.
+     * @return TaxRateSimulation ready to simulate proposed rates.
+     * @throws IOException error thrown if the tax report can not be read or a line is not a valid record.
+     */
+    public static TaxRateSimulation load(String taxReportPathName, TaxRate[] baseRates) throws IOException {
+        //Position of each employee's income in the array, so a later record replaces the income of an earlier one.
+        final EmployeeIdIndex positions = new EmployeeIdIndex(1 << 16);
+        final long[][] incomes = {new long[1 << 16]};
+        final int[] employees = new int[1];
+        TaxReportArchive.streamAllTaxReportEntries(taxReportPathName, (lineNumber, entry) -> {
+            long cents = Math.round(entry.getEmployeeIncome() * 100);
+            long position = positions.get(entry.getEmployeeId());
+            if (position != EmployeeIdIndex.notFound) {
+                incomes[0][(int) position] = cents;
+                return;
+            }
+            if (employees[0] == incomes[0].length) {
+                incomes[0] = Arrays.copyOf(incomes[0], employees[0] * 2);
+            }
+            positions.put(entry.getEmployeeId(), employees[0]);
+            incomes[0][employees[0]++] = cents;
+        });
+        long[] incomeCents = Arrays.copyOf(incomes[0], employees[0]);
+        Arrays.sort(incomeCents);
+        return new TaxRateSimulation(incomeCents, baseRates);
+    }
+
+    /**
+     * Get the number of employees in the simulation.
+     *
+     * @return int the number of employees.
+     */
+    public int getEmployeeCount() {
+        return incomeCents.length;
+    }
+
+    /**
+     * Get the result of the current rates, that proposed rates are compared against.
+     *
+     * @return SimulationResult the result of the current rates.
+     */
+    public SimulationResult getBaseResult() {
+        return baseResult;
+    }
+
+    /**
+     * Work out the tax of every employee under the proposed rates, in total and per bracket, and count the employees
+     * who would pay less or more than under the current rates.
+     *
+     * @param proposedRates TaxRate[] the proposed tax rates.
+     * @return SimulationResult the totals and counts.
+     */
+    public SimulationResult simulate(TaxRate[] proposedRates) {
+        SimulationResult result = new SimulationResult(proposedRates);
+        int[] bounds = bracketBounds(proposedRates);
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            int from = bounds[i];
+            int to = bounds[i + 1];
+            int bracket = bracketOf(proposedRates, incomeAt(from));
+            if (bracket < 0) {
+                result.unmatchedCount += to - from;
+                continue;
+            }
+            TaxRate taxRate = proposedRates[bracket];
+            long count = to - from;
+            double income = (prefixCents[to] - prefixCents[from]) / 100.0;
+            //Sum of baseTax + (income - rateThreshold) * rate over the range, the same formula as TaxCalculator.taxForBracket.
+            double tax = count * taxRate.getBaseTax();
+            if (taxRate.getRateCents() != 0) {
+                tax += (income - count * taxRate.getRateThreshold()) * (taxRate.getRateCents() / 100);
+            }
+            result.bracketCounts[bracket] += count;
+            result.bracketIncomes[bracket] += income;
+            result.bracketTaxes[bracket] += tax;
+            result.totalTax += tax;
+        }
+        countWinnersAndLosers(proposedRates, result);
+        return result;
+    }
+
+    /**
+     * Count the employees whose tax goes down or up by more than unchangedTolerance. Between the bounds of both rate sets
+     * each income stays in the same pair of brackets, where the change in tax is a straight line in the income, so
+     * the incomes that pay less (or more) are one run at the start or end of the range.
+     */
+    private void countWinnersAndLosers(final TaxRate[] proposedRates, SimulationResult result) {
+        int[] baseBounds = bracketBounds(baseRates);
+        int[] proposedBounds = bracketBounds(proposedRates);
+        int[] bounds = new int[baseBounds.length + proposedBounds.length];
+        System.arraycopy(baseBounds, 0, bounds, 0, baseBounds.length);
+        System.arraycopy(proposedBounds, 0, bounds, baseBounds.length, proposedBounds.length);
+        Arrays.sort(bounds);
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            int from = bounds[i];
+            int to = bounds[i + 1];
+            if (from == to) {
+                continue;
+            }
+            int baseBracket = bracketOf(baseRates, incomeAt(from));
+            int proposedBracket = bracketOf(proposedRates, incomeAt(from));
+            TaxRate baseRate = baseBracket < 0 ? null : baseRates[baseBracket];
+            TaxRate proposedRate = proposedBracket < 0 ? null : proposedRates[proposedBracket];
+            result.winners += countRun(from, to, baseRate, proposedRate, true);
+            result.losers += countRun(from, to, baseRate, proposedRate, false);
+        }
+    }
+
+    /**
+     * Count the incomes from index from to to (not included) whose tax change is below -unchangedTolerance (winners)
+     * or above unchangedTolerance (losers). Those incomes are a run at one end of the range, found by binary search.
+     */
+    private int countRun(int from, int to, TaxRate baseRate, TaxRate proposedRate, boolean winners) {
+        boolean first = isChanged(from, baseRate, proposedRate, winners);
+        boolean last = isChanged(to - 1, baseRate, proposedRate, winners);
+        if (first == last) {
+            //A straight line is on the same side at both ends only if it is on that side all the way.
+            return first ? to - from : 0;
+        }
+        //Binary search for the first index where the answer differs from the one at the start.
+        int low = from + 1;
+        int high = to - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (isChanged(middle, baseRate, proposedRate, winners) == first) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return first ? low - from : to - low;
+    }
+
+    private boolean isChanged(int index, TaxRate baseRate, TaxRate proposedRate, boolean winners) {
+        double income = incomeAt(index);
+        double baseTax = baseRate == null ? 0.0 : TaxCalculator.taxForBracket(baseRate, income);
+        double proposedTax = proposedRate == null ? 0.0 : TaxCalculator.taxForBracket(proposedRate, income);
+        double change = proposedTax - baseTax;
+        return winners ? change < -unchangedTolerance : change > unchangedTolerance;
+    }
+
+    /**
+     * Split the sorted incomes at every index where a bracket starts or stops matching, so within two neighbouring
+     * bounds TaxCalculator.findTaxRate picks the same bracket for every income.
+     *
+     * @return int[] sorted indexes starting with 0 and ending with the number of incomes.
+     */
+    private int[] bracketBounds(TaxRate[] taxRates) {
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        bounds.add(incomeCents.length);
+        for (TaxRate taxRate : taxRates) {
+            bounds.add(firstIndexAtLeast(taxRate.getLowerThreshold()));
+            bounds.add(firstIndexAbove(taxRate.getHigherThreshold()));
+        }
+        return bounds.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+    }
+
+    /**
+     * Get the position of the bracket TaxCalculator.findTaxRate picks for an income.
+     *
+     * @return int the position in the rates, or -1 if no bracket matches.
+     */
+    private static int bracketOf(TaxRate[] taxRates, double income) {
+        TaxRate taxRate = TaxCalculator.findTaxRate(taxRates, income);
+        for (int i = 0; taxRate != null && i < taxRates.length; i++) {
+            if (taxRates[i] == taxRate) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private double incomeAt(int index) {
+        return incomeCents[index] / 100.0;
+    }
+
+    /**
+     * Binary search for the first income at or above an amount.
+     */
+    private int firstIndexAtLeast(double amount) {
+        int low = 0;
+        int high = incomeCents.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (incomeAt(middle) >= amount) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Binary search for the first income above an amount.
+     */
+    private int firstIndexAbove(double amount) {
+        int low = 0;
+        int high = incomeCents.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (incomeAt(middle) > amount) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Result of simulating one set of tax rates over the workforce: the total tax, the employees, income and tax of each
+     * bracket (in the order of the rates), the employees in no bracket, and the winners and losers against the current rates.
+     */
+    public static class SimulationResult {
+
+        final TaxRate[] taxRates;
+        final long[] bracketCounts;
+        final double[] bracketIncomes;
+        final double[] bracketTaxes;
+        double totalTax = 0;
+        long unmatchedCount = 0;
+        long winners = 0;
+        long losers = 0;
+
+        SimulationResult(TaxRate[] taxRates) {
+            this.taxRates = taxRates;
+            this.bracketCounts = new long[taxRates.length];
+            this.bracketIncomes = new double[taxRates.length];
+            this.bracketTaxes = new double[taxRates.length];
+        }
+    }
+}
@@ -0,0 +1,556 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * TaxReportArchive keeps the older records of a tax report file in sealed, compressed segments so the file that is
+ * appended to (the active tail) stays small. Sealing moves the records older than a cutoff (by default the last
+ * defaultActiveMillis are kept) from the front of the active file into segment files in the directory next to it
+ * (taxreport.txt.segments/segment-000001.seg, ...), and leaves the active file with its heading and the recent records,
+ * which are the ones searched most and are found there through the indexes without decompressing a segment.
+ *
+ * A segment holds up to recordsPerSegment record lines in the same text format as the tax report file, compressed with
+ * the JDK Deflater, then an id filter (a Bloom filter of the employee ids it holds) and a fixed size footer with the
+ * lowest and highest employee id and timestamp and the number of records. Searches for an employee read the footers
+ * and a few bits of each id filter first and skip every segment that can not hold the employee, about 1 in 100 of the
+ * segments without the employee is read anyway. Full scans decompress the segments in parallel while handing the
+ * records on in file order.
+ *
+ * Before the segments are renamed into place a marker (seal.pending) is saved in the segment directory with the length
+ * and CRC32 of the part of the active file that was sealed, and it is only deleted once that part has been cut from the
+ * active file. If a seal is interrupted in between, the next one to read the segments or open an index of the active
+ * file finishes it, so the sealed records are never read both from a segment and from the active file.
+ */
+public class TaxReportArchive {
+
+    //Suffix added to the tax report file name for the directory of its segments.
+    public static final String segmentDirectorySuffix = ".segments";
+    //Largest number of records sealed into one segment.
+    public static final int recordsPerSegment = 1 << 20;
+    //"TAXSEG02"
+    static final long footerMagic = 0x5441585345473032L;
+    //"TAXSEG01", a segment written before segments had an id filter, it is read as having none.
+    static final long footerMagicWithoutIdFilter = 0x5441585345473031L;
+    //Footer: magic, minId, maxId, recordCount, minTimestamp, maxTimestamp, compressedLength, uncompressedLength.
+    static final int footerSize = 8 * 8;
+    private static final String segmentFilePrefix = "segment-";
+    private static final String segmentFileSuffix = ".seg";
+    private static final byte[] segmentLineSeparator = "\n".getBytes(StandardCharsets.UTF_8);
+    //Read buffer of a segment being decompressed.
+    private static final int segmentBufferSize = 1 << 16;
+    //Marker saved in the segment directory while a seal is being finished: the sealed length, the CRC32 of the sealed
+    //bytes and the numbers of the segments written, one per line.
+    private static final String sealMarkerFileName = "seal.pending";
+    //Bits of the id filter per distinct employee id of the segment and the number of bits set for each id, which lets
+    //about 1 id in 100 that is not in the segment through.
+    static final int idFilterBitsPerId = 10;
+    static final int idFilterHashes = 7;
+    //Records recorded within this long before a seal stay in the active file unless the seal is given its own cutoff,
+    //30 days in milliseconds.
+    public static final long defaultActiveMillis = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Seal the records of the active tax report file recorded before a time into new segments and cut them from the
+     * file, leaving its heading and the newer records. Records are sealed from the start of the file up to the first
+     * record recorded at or after olderThan, so what is sealed is always the front of the file (records without a
+     * timestamp count as old). Appends are locked out while this runs. The segments are written under temporary names and only renamed into
+     * place once all of them are complete and the seal marker is saved, so a failure part way leaves the active file
+     * as it was, and an interruption after that is finished by the next reader (see finishInterruptedSeal).
+     * The id and timestamp indexes of the active file are deleted, they are rebuilt on next use.
+     *
+     * @param taxReportPathName String path to the tax report file.
+     * @param olderThan         long the time in epoch milliseconds, Long.MAX_VALUE to seal every record.
+     * @return List<SegmentInfo> the segments written, empty if the file had no records older than the time.
+     * @throws IOException error thrown if the file can not be read, a line is not a valid record, or a segment can not be written.
+     */
+    public static List<SegmentInfo> sealTaxReport(String taxReportPathName, final long olderThan) throws IOException {
+        final List<SegmentInfo> sealed = new ArrayList<>();
+        File taxReportFile = new File(taxReportPathName);
+        if (!taxReportFile.isFile()) {
+            throw new FileNotFoundException(taxReportFile.getAbsolutePath() + " was not found.");
+        }
+        TaxReportFileManager.runWithAppendLock(taxReportPathName, taxReportFilePath -> {
+            File segmentDirectory = getSegmentDirectory(taxReportFilePath);
+            if (!segmentDirectory.isDirectory() && !segmentDirectory.mkdirs()) {
+                throw new IOException("The segment directory " + segmentDirectory + " could not be created");
+            }
+            //An interrupted seal is finished first, so its records are not sealed a second time.
+            completeSeal(taxReportFilePath);
+            List<SegmentInfo> existing = readSegments(taxReportFilePath);
+            int nextNumber = existing.isEmpty() ? 1 : existing.get(existing.size() - 1).number + 1;
+
+            //Appends are locked out, so nothing is written behind the sealed part while it is read and checksummed.
+            long sealedLength = 0;
+            List<File> temporaryFiles = new ArrayList<>();
+            try {
+                SegmentWriter segmentWriter = null;
+                try (ReportLineReader lineReader = new ReportLineReader(new FileInputStream(taxReportFilePath))) {
+                    while (lineReader.nextLine() && lineReader.isLineTerminated()) {
+                        TaxReportEntry taxReportEntry = TaxReportFileManager.parseTaxReportLine(lineReader);
+                        if (taxReportEntry != null && taxReportEntry.getTimestamp() >= olderThan) {
+                            break;
+                        }
+                        sealedLength = lineReader.getNextLineOffset();
+                        if (taxReportEntry == null) {
+                            continue;
+                        }
+                        if (segmentWriter == null) {
+                            File temporaryFile = new File(segmentDirectory, segmentFileName(nextNumber) + ".tmp");
+                            temporaryFiles.add(temporaryFile);
+                            segmentWriter = new SegmentWriter(temporaryFile);
+                        }
+                        segmentWriter.add(taxReportEntry);
+                        if (segmentWriter.recordCount == recordsPerSegment) {
+                            sealed.add(segmentWriter.finish(nextNumber++));
+                            segmentWriter = null;
+                        }
+                    }
+                } finally {
+                    if (segmentWriter != null) {
+                        sealed.add(segmentWriter.finish(nextNumber));
+                    }
+                }
+                if (!sealed.isEmpty()) {
+                    writeSealMarker(segmentDirectory, sealedLength,
+                            checksumOf(new File(taxReportFilePath), sealedLength), sealed);
+                }
+            } catch (IOException | RuntimeException notSealed) {
+                for (File temporaryFile : temporaryFiles) {
+                    temporaryFile.delete();
+                }
+                sealed.clear();
+                throw notSealed;
+            }
+            completeSeal(taxReportFilePath);
+        });
+        return sealed;
+    }
+
+    /**
+     * Finish a seal of the tax report file that was interrupted (for example by a crash) after its segments were
+     * complete: rename the segments into place and cut the sealed records from the active file, if that was not done
+     * yet. Called before the segments or an index of the active file are read, when no seal was interrupted it only
+     * checks that there is no seal marker.
+     *
+     * @param taxReportPathName String path to the tax report file.
+     * @throws IOException error thrown if the seal marker is damaged or the files can not be renamed or written.
+     */
+    public static void finishInterruptedSeal(String taxReportPathName) throws IOException {
+        if (new File(getSegmentDirectory(taxReportPathName), sealMarkerFileName).isFile()) {
+            TaxReportFileManager.runWithAppendLock(taxReportPathName, TaxReportArchive::completeSeal);
+        }
+    }
+
+    /**
+     * Save the seal marker under a temporary name and rename it into place, so it is either complete or not there.
+     *
+     * @param segmentDirectory File the segment directory.
+     * @param sealedLength     long the number of bytes of the active file that were sealed.
+     * @param checksum         long the CRC32 of those bytes.
+     * @param sealed           List<SegmentInfo> the segments they were sealed into.
+     * @throws IOException error thrown if the marker can not be written.
+     */
+    static void writeSealMarker(File segmentDirectory, long sealedLength, long checksum, List<SegmentInfo> sealed)
+            throws IOException {
+        StringBuilder marker = new StringBuilder();
+        marker.append(sealedLength).append('\n').append(checksum).append('\n');
+        for (SegmentInfo segment : sealed) {
+            marker.append(segment.number).append('\n');
+        }
+        File temporaryFile = new File(segmentDirectory, sealMarkerFileName + ".tmp");
+        try (FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile)) {
+            fileOutputStream.write(marker.toString().getBytes(StandardCharsets.UTF_8));
+            fileOutputStream.getFD().sync();
+        }
+        Files.move(temporaryFile.toPath(), new File(segmentDirectory, sealMarkerFileName).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Carry out the seal recorded in the seal marker, if there is one, then delete the marker. Every step can be run
+     * again after an interruption: segments already renamed are left as they are, and the active file is only cut if
+     * it still starts with the sealed bytes. Temporary files of a seal that failed before its marker was saved are
+     * deleted. Must be called while holding the append lock.
+     */
+    private static void completeSeal(String taxReportFilePath) throws IOException {
+        File segmentDirectory = getSegmentDirectory(taxReportFilePath);
+        File markerFile = new File(segmentDirectory, sealMarkerFileName);
+        if (markerFile.isFile()) {
+            long sealedLength;
+            long checksum;
+            List<Integer> numbers = new ArrayList<>();
+            try (BufferedReader markerReader = Files.newBufferedReader(markerFile.toPath(), StandardCharsets.UTF_8)) {
+                sealedLength = Long.parseLong(markerReader.readLine());
+                checksum = Long.parseLong(markerReader.readLine());
+                String line;
+                while ((line = markerReader.readLine()) != null) {
+                    numbers.add(Integer.parseInt(line));
+                }
+            } catch (NumberFormatException | NullPointerException damagedMarker) {
+                throw new IOException(markerFile + " is damaged, the seal it records can not be finished", damagedMarker);
+            }
+            for (int number : numbers) {
+                File temporaryFile = new File(segmentDirectory, segmentFileName(number) + ".tmp");
+                if (temporaryFile.isFile()) {
+                    Files.move(temporaryFile.toPath(), new File(segmentDirectory, segmentFileName(number)).toPath(),
+                            StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            cutSealedRecords(new File(taxReportFilePath), sealedLength, checksum);
+            new File(taxReportFilePath + TaxReportIndex.indexFileSuffix).delete();
+            new File(taxReportFilePath + TimestampBlockIndex.indexFileSuffix).delete();
+            Files.delete(markerFile.toPath());
+        }
+        File[] temporaryFiles = segmentDirectory.listFiles((directory, name) -> name.endsWith(".tmp"));
+        if (temporaryFiles != null) {
+            for (File temporaryFile : temporaryFiles) {
+                temporaryFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Cut the sealed records from the front of the active file, leaving its heading and any records appended after
+     * them. Nothing is cut unless the file still starts with the sealed bytes (same length and CRC32), as it no longer
+     * does once a seal has cut it.
+     */
+    private static void cutSealedRecords(File activeFile, long sealedLength, long checksum) throws IOException {
+        long length = activeFile.length();
+        if (length < sealedLength || checksumOf(activeFile, sealedLength) != checksum) {
+            return;
+        }
+        byte[] heading = (TaxReportFileManager.taxReportHeading + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        if (length == sealedLength) {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(activeFile, "rw")) {
+                randomAccessFile.setLength(0);
+                randomAccessFile.write(heading);
+            }
+            return;
+        }
+        //Records were appended after an interrupted seal: they are copied behind a new heading and the copy is renamed
+        //over the file, so an interruption now still leaves either the old file or the new one. Only one seal runs at a
+        //time (under the append lock), so the copy can have a fixed name.
+        File copyFile = new File(activeFile.getPath() + ".seal.tmp");
+        try (FileOutputStream fileOutputStream = new FileOutputStream(copyFile);
+             FileInputStream fileInputStream = new FileInputStream(activeFile)) {
+            fileOutputStream.write(heading);
+            for (long position = sealedLength; position < length; ) {
+                position += fileInputStream.getChannel().transferTo(position, length - position, fileOutputStream.getChannel());
+            }
+            fileOutputStream.getFD().sync();
+        }
+        Files.move(copyFile.toPath(), activeFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Work out the CRC32 of the first bytes of a file.
+     *
+     * @param file   File the file.
+     * @param length long the number of bytes from the start of the file.
+     * @return long the CRC32 value.
+     * @throws IOException error thrown if the file can not be read.
+     */
+    static long checksumOf(File file, long length) throws IOException {
+        CRC32 checksum = new CRC32();
+        byte[] buffer = new byte[segmentBufferSize];
+        try (FileInputStream fileInputStream = new FileInputStream(file)) {
+            for (long remaining = length; remaining > 0; ) {
+                int read = fileInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                checksum.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        return checksum.getValue();
+    }
+
+    /**
+     * Get the directory that holds the segments of a tax report file.
+     *
+     * @param taxReportPathName String path to the tax report file.
+     * @return File the segment directory, it may not exist yet.
+     */
+    public static File getSegmentDirectory(String taxReportPathName) {
+        return new File(new File(taxReportPathName).getAbsolutePath() + segmentDirectorySuffix);
+    }
+
+    private static String segmentFileName(int number) {
+        return String.format("%s%06d%s", segmentFilePrefix, number, segmentFileSuffix);
+    }
+
+    /**
+     * List the segments of a tax report file from the oldest to the newest, reading just their footers. A seal that
+     * was interrupted is finished first.
+     *
+     * @param taxReportPathName String path to the tax report file.
+     * @return List<SegmentInfo> the segments, empty if the file has never been sealed.
+     * @throws IOException error thrown if a segment can not be read or its footer is damaged.
+     */
+    public static List<SegmentInfo> listSegments(String taxReportPathName) throws IOException {
+        finishInterruptedSeal(taxReportPathName);
+        return readSegments(taxReportPathName);
+    }
+
+    private static List<SegmentInfo> readSegments(String taxReportPathName) throws IOException {
+        List<SegmentInfo> segments = new ArrayList<>();
+        File[] files = getSegmentDirectory(taxReportPathName).listFiles();
+        if (files == null) {
+            return segments;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(segmentFilePrefix) && name.endsWith(segmentFileSuffix)) {
+                int number = Integer.parseInt(name.substring(segmentFilePrefix.length(), name.length() - segmentFileSuffix.length()));
+                segments.add(SegmentInfo.read(file, number));
+            }
+        }
+        segments.sort((first, second) -> Integer.compare(first.number, second.number));
+        return segments;
+    }
+
+    /**
+     * Find the latest sealed record of an employee. Segments are read from the newest back, skipping every segment
+     * whose id range or id filter rules out the employee id, and the search stops at the first segment with a match.
+     *
+     * @param taxReportPathName String path to the tax report file.
+     * @param employeeId        long the employee id to search for.
+     * @return TaxReportEntry or null if no segment holds a record of the employee.
+     * @throws IOException error thrown if a segment can not be read.
+     */
+    public static TaxReportEntry findLatest(String taxReportPathName, long employeeId) throws IOException {
+        List<SegmentInfo> segments = listSegments(taxReportPathName);
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            SegmentInfo segment = segments.get(i);
+            if (!segment.mayHoldEmployee(employeeId)) {
+                continue;
+            }
+            TaxReportEntry latest = null;
+            try (ReportLineReader lineReader = segment.openReader()) {
+                while (lineReader.nextLine()) {
+                    TaxReportEntry taxReportEntry = TaxReportFileManager.parseTaxReportLine(lineReader);
+                    if (taxReportEntry != null && taxReportEntry.getEmployeeId() == employeeId) {
+                        latest = taxReportEntry;
+                    }
+                }
+            }
+            if (latest != null) {
+                return latest;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the sealed record of an employee with the latest timestamp after one time and at or before another. Only
+     * segments that may hold the employee (see SegmentInfo.mayHoldEmployee) and whose timestamps overlap the times are
+     * read, newest first. When
+     * timestamps are equal the record further down the file wins, the same as TimestampBlockIndex.findLatestAsOf.
+     *
+     * @param taxReportPathName String path to the tax report file.
+     * @param employeeId        long the employee id to search for.
+     * @param after             long only records with a timestamp greater than this are returned, Long.MIN_VALUE for all.
+     * @param asOf              long the time in epoch milliseconds.
+     * @return TaxReportEntry or null if there is no such record.
+     * @throws IOException error thrown if a segment can not be read.
+     */
+    public static TaxReportEntry findLatestAsOf(String taxReportPathName, long employeeId, long after, long asOf) throws IOException {
+        TaxReportEntry latest = null;
+        List<SegmentInfo> segments = listSegments(taxReportPathName);
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            SegmentInfo segment = segments.get(i);
+            long notAfter = latest == null ? after : latest.getTimestamp();
+            if (segment.minTimestamp > asOf || segment.maxTimestamp <= notAfter || !segment.mayHoldEmployee(employeeId)) {
+                continue;
+            }
+            //Within the segment a later line wins a tie, the segment is earlier in the file than any segment already read.
+            TaxReportEntry segmentLatest = null;
+            try (ReportLineReader lineReader = segment.openReader()) {
+                while (lineReader.nextLine()) {
+                    TaxReportEntry taxReportEntry = TaxReportFileManager.parseTaxReportLine(lineReader);
+                    if (taxReportEntry != null && taxReportEntry.getEmployeeId() == employeeId
+                            && taxReportEntry.getTimestamp() <= asOf && taxReportEntry.getTimestamp() > notAfter
+                            && (segmentLatest == null || taxReportEntry.getTimestamp() >= segmentLatest.getTimestamp())) {
+                        segmentLatest = taxReportEntry;
+                    }
+                }
+            }
+            if (segmentLatest != null) {
+                latest = segmentLatest;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Hand every sealed record with a timestamp from fromTimestamp to toTimestamp (both included) to the handler, in
+     * file order. Only the segments whose timestamps overlap the range are decompressed, in parallel.
+     *
+     * @param taxReportPathName String path to the tax report file.
+     * @param fromTimestamp     long start of the range in epoch milliseconds.
+     * @param toTimestamp       long end of the range in epoch milliseconds.
+     * @param handler           TaxReportEntryHandler called for each matching record (the line number is not known and is 0).
+     * @return long the number of matching records.
+     * @throws IOException error thrown if a segment can not be read.
+     */
+    public static long findRecordsBetween(String taxReportPathName, final long fromTimestamp, final long toTimestamp,
+                                          final TaxReportEntryHandler handler) throws IOException {
+        List<SegmentInfo> segments = new ArrayList<>();
+        for (SegmentInfo segment : listSegments(taxReportPathName)) {
+            if (segment.maxTimestamp >= fromTimestamp && segment.minTimestamp <= toTimestamp) {
+                segments.add(segment);
+            }
+        }
+        final long[] found = new long[1];
+        scanSegments(segments, segmentRecords -> {
+            for (int i = 0; i < segmentRecords.count; i++) {
+                if (segmentRecords.timestamps[i] >= fromTimestamp && segmentRecords.timestamps[i] <= toTimestamp) {
+                    handler.handle(0, segmentRecords.getEntry(i));
+                    found[0]++;
+                }
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * Hand every record of a tax report file to the handler in file order: the sealed records first, then the records
+     * of the active file. The line number given is the record's number within its segment, or its line in the active file.
+     *
+     * @param taxReportPathName String path to the tax report file.
+     * @param handler           TaxReportEntryHandler called for each record.
+     * @return long the number of records.
+     * @throws IOException error thrown if a segment or the active file can not be read, or a line is not a valid record.
+     */
+    public static long streamAllTaxReportEntries(String taxReportPathName, final TaxReportEntryHandler handler) throws IOException {
+        final long[] sealedRecords = new long[1];
+        scanSegments(listSegments(taxReportPathName), segmentRecords -> {
+            for (int i = 0; i < segmentRecords.count; i++) {
+                handler.handle(i + 1, segmentRecords.getEntry(i));
+            }
+            sealedRecords[0] += segmentRecords.count;
+        });
+        return sealedRecords[0] + TaxReportFileManager.streamTaxReportEntries(taxReportPathName, handler);
+    }
+
+    /**
+     * Decompress and parse segments on a pool of one thread per core and hand each segment's records to the handler in
+     * the order of the list. Only a few segments more than there are threads are decoded ahead of the handler, so
+     * memory use stays bounded however many segments there are.
+     *
+     * @param segments List<SegmentInfo> the segments to scan, in the order they are handed on.
+     * @param handler  SegmentRecordsHandler called once per segment with all of its records.
+     * @throws IOException error thrown if a segment can not be read or holds an invalid line.
+     */
+    public static void scanSegments(List<SegmentInfo> segments, SegmentRecordsHandler handler) throws IOException {
+        if (segments.isEmpty()) {
+            return;
+        }
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), segments.size());
+        int maxInFlight = threads + 1;
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayDeque<Future<SegmentRecords>> inFlight = new ArrayDeque<>();
+            int next = 0;
+            while (next < segments.size() || !inFlight.isEmpty()) {
+                while (next < segments.size() && inFlight.size() < maxInFlight) {
+                    final SegmentInfo segment = segments.get(next++);
+                    inFlight.add(executorService.submit(segment::readRecords));
+                }
+                handler.handle(inFlight.removeFirst().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Reading the segments was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Reading the segments failed", e.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the records of one segment through a Deflater and adds the id filter and the footer once it is complete.
+     */
+    private static class SegmentWriter {
+
+        private final File file;
+        private final FileOutputStream fileOutputStream;
+        //Fastest level: sealing runs while appends wait, and it compresses the records about as well as the default level.
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final DeflaterOutputStream deflaterOutputStream;
+        private final ReportOutputBuffer outputBuffer;
+        private int recordCount = 0;
+        //Employee id of every record written, for the id filter.
+        private long[] employeeIds = new long[1 << 10];
+        private long minId = Long.MAX_VALUE;
+        private long maxId = Long.MIN_VALUE;
+        private long minTimestamp = Long.MAX_VALUE;
+        private long maxTimestamp = Long.MIN_VALUE;
+
+        private SegmentWriter(File file) throws IOException {
+            this.file = file;
+            this.fileOutputStream = new FileOutputStream(file);
+            this.deflaterOutputStream = new DeflaterOutputStream(fileOutputStream, deflater, segmentBufferSize);
+            this.outputBuffer = new ReportOutputBuffer(deflaterOutputStream);
+        }
+
+        private void add(TaxReportEntry taxReportEntry) throws IOException {
+            TaxReportFileManager.writeTaxReportLine(outputBuffer, taxReportEntry.getEmployeeId(), taxReportEntry.getEmployeeIncome(),
+                    taxReportEntry.getTax(), taxReportEntry.getTimestamp(), segmentLineSeparator);
+            if (recordCount == employeeIds.length) {
+                employeeIds = Arrays.copyOf(employeeIds, recordCount * 2);
+            }
+            employeeIds[recordCount] = taxReportEntry.getEmployeeId();
+            minId = Math.min(minId, taxReportEntry.getEmployeeId());
+            maxId = Math.max(maxId, taxReportEntry.getEmployeeId());
+            minTimestamp = Math.min(minTimestamp, taxReportEntry.getTimestamp());
+            maxTimestamp = Math.max(maxTimestamp, taxReportEntry.getTimestamp());
+            recordCount++;
+        }
+
+        /**
+         * Finish the compressed data, write the id filter and the footer and close the file.
+         */
+        private SegmentInfo finish(int number) throws IOException {
+            try {
+                outputBuffer.flush();
+                deflaterOutputStream.finish();
+                long compressedLength = fileOutputStream.getChannel().position();
+                byte[] idFilter = SegmentInfo.buildIdFilter(employeeIds, recordCount);
+                SegmentInfo segment = new SegmentInfo(new File(file.getParentFile(), segmentFileName(number)), number,
+                        minId, maxId, recordCount, minTimestamp, maxTimestamp, compressedLength, deflater.getBytesRead(),
+                        idFilter.length);
+                fileOutputStream.write(idFilter);
+                fileOutputStream.write(segment.footerBytes());
+                fileOutputStream.getFD().sync();
+                return segment;
+            } finally {
+                deflater.end();
+                fileOutputStream.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+import java.time.Instant;
+
+/**
+ * TaxReportEntry Object used for storing employeeId, employeeIncome and Tax amounts
+ */
+class TaxReportEntry {
+
+    private long employeeId = 0;
+    private double employeeIncome = 0.0;
+    private double tax = 0.0;
+    //Epoch milliseconds when the record was written, or TaxReportFileManager.noTimestamp for older records.
+    private long timestamp = TaxReportFileManager.noTimestamp;
+
+    public TaxReportEntry(long employeeId, double employeeIncome, double tax) {
+        this.employeeId = employeeId;
+        this.employeeIncome = employeeIncome;
+        this.tax = tax;
+    }
+
+    public TaxReportEntry(long employeeId, double employeeIncome, double tax, long timestamp) {
+        this(employeeId, employeeIncome, tax);
+        this.timestamp = timestamp;
+    }
+
+    public long getEmployeeId() {
+        return employeeId;
+    }
+
+    public double getEmployeeIncome() {
+        return employeeIncome;
+    }
+
+    public double getTax() {
+        return tax;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    //Method override toString() used mainly for printing the object to display to the user.
+    @Override
+    public String toString() {
+        String employeeIdString = String.format("%04d", employeeId);
+        String employeeIncomeString = String.format("%.2f", employeeIncome);
+        String totalTaxString = String.format("%.2f", tax);
+        String result = "For Employee ID: " + employeeIdString + "" +
+                "\nIncome is: $" + employeeIncomeString + "" +
+                "\nTax on that income was: $" + totalTaxString;
+        if (timestamp != TaxReportFileManager.noTimestamp) {
+            result += "\nRecorded at: " + Instant.ofEpochMilli(timestamp);
+        }
+        return result;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,16 @@
+import java.io.IOException;
+
+/**
+ * Callback used by TaxReportFileManager.streamTaxReportEntries to receive each record read from the file.
+ */
+interface TaxReportEntryHandler {
+
+    /**
+     * Receive one record read from the file.
+     *
+     * @param lineNumber     long the line of the file the record was read from (counting from 1).
+     * @param taxReportEntry TaxReportEntry the record.
+     * @throws IOException handlers that write records somewhere else may pass their errors on.
+     */
+    void handle(long lineNumber, TaxReportEntry taxReportEntry) throws IOException;
+}
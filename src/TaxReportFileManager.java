@@ -1,6 +1,16 @@
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class TaxReportFileManager {
 
@@ -9,65 +19,372 @@ public class TaxReportFileManager {
     public static final String taxReportFileName = "taxreport.txt";
     //Pattern to capture the worded heading in the title/header of the file
     public static final String wordedHeaderPattern = "[a-zA-Z\\s]*";
-    //Pattern to capture the four digit employee id for example ("1234" or "0012")
-    private static final String employeeIdPattern = "\\d{4}";
+    //Pattern to capture the employee id of four or more digits for example ("1234", "0012" or "123456789012")
+    private static final String employeeIdPattern = "\\d{4,18}";
     //Pattern to capture the dollar value amount for example ("123123.00...etc" or "0.00")
     private static final String amountValuePattern = "((\\d{1,3}([,\\.])?)*)";
     //Pattern to capture the space between numbers in the table
     private static final String spacePattern = "(\\s)+";
+    //Value of the timestamp of records written before timestamps were added to the file (they have no fourth column).
+    public static final long noTimestamp = 0;
+    //Bytes written between the columns of a record
+    private static final byte[] columnSeparator = "    ".getBytes();
+    //Suffix of the sidecar file locked by every process while it appends to the tax report file.
+    public static final String lockFileSuffix = ".lock";
+    //Room kept in the buffer before each record so a record always goes out in a single write (longest normal record ~90 bytes).
+    private static final int maxRecordBytes = 160;
+    //Threads of this process take turns on this before taking the file lock, as a process can only hold the lock once.
+    private static final Object appendLock = new Object();
+    //Batches of this process waiting to be written. Whoever gets appendLock writes every batch queued so far under one
+    //file lock, so threads waiting for another process to release the lock share the next turn instead of each taking
+    //a turn of their own (see writeTaxReportEntries).
+    private static final ConcurrentLinkedQueue<PendingBatch> pendingBatches = new ConcurrentLinkedQueue<>();
+    //Channel of the lock file, opened on the first append and kept open (guarded by appendLock) to save reopening it per batch.
+    private static FileChannel lockChannel = null;
+    //Heading line written at the top of a new tax report file.
+    public static final String taxReportHeading = "Employee ID    Taxable Income    Tax    Timestamp";
+    //Stream and buffer of the tax report file, opened on the first append and kept open (guarded by appendLock) so each
+    //batch does not reopen the file. They are opened again if the file was replaced since (see openReportOutput).
+    private static FileOutputStream reportOutputStream = null;
+    private static ReportOutputBuffer reportOutputBuffer = null;
+    //File key (device and inode) of the file the stream was opened on, or null if the platform has none.
+    private static Object reportFileKey = null;
 
 
     /**
-     * Method to write to the taxreport.txt file with the employeeid, employeeincome and totaltax calculated.
+     * Method to write to the taxreport.txt file with the employeeid, employeeincome and totaltax calculated. The record
+     * is stamped with the current time.
      *
-     * @param employeeId     int 4 digit employeeId
+     * @param employeeId     long employeeId of at least 4 digits
      * @param employeeIncome double the income for the employee of employeeId
      * @param totalTax       double calculated total tax as double
      * @return boolean indicating whether the file was written successfully back to the caller.
      */
-    public static boolean writeTaxReportEntry(int employeeId, double employeeIncome, double totalTax) {
-        //Initiate the boolean indicator to return
-        boolean writtenToFile = false;
+    public static boolean writeTaxReportEntry(long employeeId, double employeeIncome, double totalTax) {
+        return writeTaxReportEntries(new long[]{employeeId}, new double[]{employeeIncome}, new double[]{totalTax}, 1);
+    }
 
+    /**
+     * Method to append many records to the taxreport.txt file at once. The file is kept open between batches and the
+     * lines are formatted by hand into a large buffer (see ReportOutputBuffer) rather than with String.format, the
+     * text written is the same as writing each record with writeTaxReportEntry. Every record of the batch is stamped
+     * with the time the batch is written, as epoch milliseconds in a fourth column.
+     *
+     * Several threads and processes may append at the same time: for the duration of the batch the writer holds an
+     * exclusive FileChannel lock on the sidecar file taxreport.txt.lock, so batches never interleave and the heading is
+     * only written by whoever finds the file empty. Handing the lock between processes is the slow part of an append,
+     * so threads of one process that are waiting for the lock queue their batches and whichever of them gets it next
+     * writes all of them in one turn, each batch still in one piece. Readers do not take the lock, and as the buffer is handed to the file
+     * in writes of up to its whole size a reader can find the last line only partly written: every reader of the
+     * file leaves out a last line that has no line terminator yet (see ReportLineReader.isLineTerminated).
+     *
+     * @param employeeIds     long[] employeeIds of at least 4 digits
+     * @param employeeIncomes double[] the income for the employee at the same position
+     * @param totalTaxes      double[] calculated total tax for the employee at the same position
+     * @param count           int the number of records to write from the start of the arrays
+     * @return boolean indicating whether the file was written successfully back to the caller.
+     */
+    public static boolean writeTaxReportEntries(long[] employeeIds, double[] employeeIncomes, double[] totalTaxes, int count) {
+        return writeTaxReportEntries(taxReportFileName, employeeIds, employeeIncomes, totalTaxes, count);
+    }
+
+    /**
+     * Method to append many records to a tax report file other than taxreport.txt, the same way as writeTaxReportEntries.
+     *
+     * @param pathName        String path to the tax report file.
+     * @param employeeIds     long[] employeeIds of at least 4 digits
+     * @param employeeIncomes double[] the income for the employee at the same position
+     * @param totalTaxes      double[] calculated total tax for the employee at the same position
+     * @param count           int the number of records to write from the start of the arrays
+     * @return boolean indicating whether the file was written successfully back to the caller.
+     */
+    static boolean writeTaxReportEntries(String pathName, long[] employeeIds, double[] employeeIncomes, double[] totalTaxes,
+                                         int count) {
         //Create a File object to use for obtaining a full path.
-        File taxReportFile = new File(taxReportFileName);
+        File taxReportFile = new File(pathName);
         //Absolute path.
         String taxReportFilePath = taxReportFile.getAbsolutePath();
 
-        boolean fileAlreadyExisted = taxReportFile.exists();
+        PendingBatch batch = new PendingBatch(taxReportFilePath, employeeIds, employeeIncomes, totalTaxes, count);
+        pendingBatches.add(batch);
+
+        synchronized (appendLock) {
+            //Another thread may have written the batch together with its own while this one waited for appendLock.
+            if (batch.done) {
+                return batch.written;
+            }
+
+            //Initiate the boolean indicator to return
+            boolean writtenToFile = false;
+            List<PendingBatch> group = new ArrayList<>();
+            FileLock fileLock = null;
+            try {
+                fileLock = lockAppends(taxReportFilePath);
+                //Taken only now so the batches queued while waiting for the file lock go out in this turn as well. The
+                //batch of this thread is among them, as queued batches are only taken while holding appendLock.
+                takePendingBatches(taxReportFilePath, group);
+                //Opened in append mode, so records always go to the end even if another process cut the file short.
+                ReportOutputBuffer outputBuffer = openReportOutput(taxReportFilePath);
+
+                byte[] lineSeparator = System.lineSeparator().getBytes();
+                long timestamp = System.currentTimeMillis();
+                //Checked while holding the lock, so two writers can not both find the file empty.
+                boolean fileAlreadyHadRecords = reportOutputStream.getChannel().size() > 0;
+
+                //If the taxreport.txt file did not already exist, add the title to it to meet the assignment criteria:
+                if (!fileAlreadyHadRecords) {
+                    outputBuffer.writeText(taxReportHeading);
+                    outputBuffer.writeBytes(lineSeparator);
+                }
+
+                for (PendingBatch pending : group) {
+                    for (int i = 0; i < pending.count; i++) {
+                        outputBuffer.reserve(maxRecordBytes);
+                        writeTaxReportLine(outputBuffer, pending.employeeIds[i], pending.employeeIncomes[i],
+                                pending.totalTaxes[i], timestamp, lineSeparator);
+                    }
+                }
+
+                //Flush the buffer to force the file to write before the lock is released.
+                outputBuffer.flush();
+                writtenToFile = true;
+
+            } catch (IOException e) {
+                e.printStackTrace();
+                //Whatever is left in the buffer belongs to the failed batches, start the next batch on a fresh stream.
+                closeReportOutput();
+            } finally {
+                if (fileLock != null) {
+                    try {
+                        fileLock.release();
+                        if (fileLock.channel() != lockChannel) {
+                            //Another tax report file than the usual one, its lock channel was opened for this turn.
+                            fileLock.channel().close();
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+
+            if (group.isEmpty()) {
+                //The file lock could not be taken, the batches queued so far fail with this one.
+                takePendingBatches(taxReportFilePath, group);
+            }
+            //Every batch of the group was written in the same turn, so they all succeeded or failed together.
+            for (PendingBatch pending : group) {
+                pending.written = writtenToFile;
+                pending.done = true;
+            }
+            return writtenToFile;
+        }
+    }
+
+    /**
+     * Move every queued batch for the file to the group, in the order they were queued. Must be called while holding
+     * appendLock.
+     */
+    private static void takePendingBatches(String taxReportFilePath, List<PendingBatch> group) {
+        for (Iterator<PendingBatch> pending = pendingBatches.iterator(); pending.hasNext(); ) {
+            PendingBatch batch = pending.next();
+            if (batch.taxReportFilePath.equals(taxReportFilePath)) {
+                group.add(batch);
+                pending.remove();
+            }
+        }
+    }
 
-        /*
-            Try with resources block to open the fileoutputstream to the taxreport.txt file with append mode set on in
-            order to be able to write to the file adding to existing records.
-        */
+    /**
+     * Get the buffer over the open tax report file, opening the file if it is not open yet or if the path now names
+     * a different file than the one open (the file was deleted or replaced, for example when the archive finished an
+     * interrupted seal). Must be called while holding appendLock and the file lock.
+     */
+    private static ReportOutputBuffer openReportOutput(String taxReportFilePath) throws IOException {
+        Object fileKey = fileKeyOf(taxReportFilePath);
+        if (reportOutputBuffer == null || fileKey == null || !fileKey.equals(reportFileKey)) {
+            closeReportOutput();
+            reportOutputStream = new FileOutputStream(taxReportFilePath, true);
+            reportOutputBuffer = new ReportOutputBuffer(reportOutputStream);
+            reportFileKey = fileKeyOf(taxReportFilePath);
+        }
+        return reportOutputBuffer;
+    }
 
-        try (FileOutputStream fileOutputStream = new FileOutputStream(taxReportFilePath, true)) {
-            PrintWriter printWriter = new PrintWriter(fileOutputStream);
+    /**
+     * Get the file key of a file, or null if the file does not exist or the platform has no file keys (the file is then
+     * opened again for every batch).
+     */
+    private static Object fileKeyOf(String pathName) throws IOException {
+        try {
+            return Files.readAttributes(Paths.get(pathName), BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException notCreatedYet) {
+            return null;
+        }
+    }
 
-            //If the taxreport.txt file did not already exist, add the title to it to meet the assignment criteria:
-            if (!fileAlreadyExisted) {
-                printWriter.println("Employee ID    Taxable Income    Tax    ");
+    /**
+     * Close the kept open tax report stream without writing what is left in its buffer.
+     */
+    private static void closeReportOutput() {
+        if (reportOutputStream != null) {
+            try {
+                reportOutputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+        }
+        reportOutputStream = null;
+        reportOutputBuffer = null;
+        reportFileKey = null;
+    }
+
+    /**
+     * Write one record as a line of the tax report file.
+     *
+     * @param outputBuffer   ReportOutputBuffer where the line is written.
+     * @param employeeId     long employeeId, padded to 4 digits
+     * @param employeeIncome double the income for the employee
+     * @param totalTax       double calculated total tax
+     * @param timestamp      long epoch milliseconds, the column is left out for noTimestamp
+     * @param lineSeparator  byte[] the line separator to end the line with
+     * @throws IOException error thrown if the buffer could not be written.
+     */
+    static void writeTaxReportLine(ReportOutputBuffer outputBuffer, long employeeId, double employeeIncome, double totalTax,
+                                   long timestamp, byte[] lineSeparator) throws IOException {
+        //For the employeeId use padding up to 4 digits in case the user id contains leading 000, longer ids are written in full.
+        outputBuffer.writeNumber(employeeId, 4);
+        outputBuffer.writeBytes(columnSeparator);
+        //Two decimal places for the doubles to match the assignment table.
+        outputBuffer.writeAmount(employeeIncome);
+        outputBuffer.writeBytes(columnSeparator);
+        outputBuffer.writeAmount(totalTax);
+        if (timestamp != noTimestamp) {
+            outputBuffer.writeBytes(columnSeparator);
+            outputBuffer.writeNumber(timestamp, 1);
+        }
+        outputBuffer.writeBytes(lineSeparator);
+    }
 
-            //For the employeeId use padding up to 4 spaces in case the user id contains leading 000.
-            String employeeIdString = String.format("%04d", employeeId);
-            //Set them all to strings, and use String.format to get up to two decimal places for the doubles to match the assignment table.
-            String employeeIncomeString = String.format("%.2f", employeeIncome);
-            String totalTaxString = String.format("%.2f", totalTax);
+    /**
+     * Take the exclusive lock on the sidecar lock file, waiting for any other process that holds it. Must be called
+     * while holding appendLock.
+     *
+     * @param taxReportFilePath String absolute path of the tax report file.
+     * @return FileLock the lock, to be released once the batch has been written.
+     * @throws IOException error thrown if the lock file can not be opened or locked.
+     */
+    private static FileLock lockAppends(String taxReportFilePath) throws IOException {
+        String lockFilePath = taxReportFilePath + lockFileSuffix;
+        if (!lockFilePath.equals(new File(taxReportFileName).getAbsolutePath() + lockFileSuffix)) {
+            //Another tax report file than the usual one, its lock channel is closed together with the lock.
+            FileChannel otherLockChannel = new RandomAccessFile(lockFilePath, "rw").getChannel();
+            return otherLockChannel.lock();
+        }
+        if (lockChannel == null || !lockChannel.isOpen()) {
+            lockChannel = new RandomAccessFile(lockFilePath, "rw").getChannel();
+        }
+        return lockChannel.lock();
+    }
 
-            printWriter.println(employeeIdString +
-                    "    " + employeeIncomeString +
-                    "    " + totalTaxString);
+    /**
+     * Run an action while holding the same lock that appends take, so no record is appended to the tax report file
+     * while the action runs. Used by maintenance such as sealing the file into archive segments.
+     *
+     * @param pathName String path to the tax report file.
+     * @param action   LockedReportAction the action, given the absolute path of the file.
+     * @throws IOException error thrown if the lock can not be taken or the action fails.
+     */
+    static void runWithAppendLock(String pathName, LockedReportAction action) throws IOException {
+        String taxReportFilePath = new File(pathName).getAbsolutePath();
+        synchronized (appendLock) {
+            FileLock fileLock = lockAppends(taxReportFilePath);
+            try {
+                action.run(taxReportFilePath);
+            } finally {
+                fileLock.release();
+                if (fileLock.channel() != lockChannel) {
+                    fileLock.channel().close();
+                }
+            }
+        }
+    }
 
-            writtenToFile = true;
-            //Flush the printWriter to force the file to write.
-            printWriter.flush();
+    /**
+     * Method to read the taxreport file one record at a time without keeping the records in memory. Each record is
+     * handed to the handler together with its line number, so files of any size can be processed in constant memory.
+     * Heading and blank lines are skipped, the parsing is done by hand over the bytes (see ReportLineReader). A last
+     * line without a line terminator may be a record another process is still writing, it is left out.
+     *
+     * @param pathName String path to file (current working directory or absolute) that contains the tax reports.
+     * @param handler  TaxReportEntryHandler called for every record in file order.
+     * @return long the number of records read.
+     * @throws IOException error thrown if the file can not be found or read, or a line is not a valid record.
+     */
+    public static long streamTaxReportEntries(String pathName, TaxReportEntryHandler handler) throws IOException {
+        long recordCount = 0;
+        try (ReportLineReader lineReader = new ReportLineReader(new FileInputStream(new File(pathName).getAbsolutePath()))) {
+            while (lineReader.nextLine() && lineReader.isLineTerminated()) {
+                TaxReportEntry taxReportEntry = parseTaxReportLine(lineReader);
+                if (taxReportEntry != null) {
+                    handler.handle(lineReader.getLineNumber(), taxReportEntry);
+                    recordCount++;
+                }
+            }
+        }
+        return recordCount;
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Method to read the single record that starts at the given byte offset of a tax report file, used together with
+     * an index of record offsets so a lookup does not need to read the rest of the file.
+     *
+     * @param pathName String path to the tax report file.
+     * @param offset   long byte offset of the start of the record line.
+     * @return TaxReportEntry or null if the line at the offset is blank or a heading.
+     * @throws IOException error thrown if the file can not be read or the line is not a valid record.
+     */
+    public static TaxReportEntry readTaxReportEntryAt(String pathName, long offset) throws IOException {
+        try (FileInputStream fileInputStream = new FileInputStream(new File(pathName).getAbsolutePath())) {
+            fileInputStream.getChannel().position(offset);
+            //A record line is far shorter than this, the reader grows its buffer if it ever is not.
+            ReportLineReader lineReader = new ReportLineReader(fileInputStream, 256);
+            return lineReader.nextLine() ? parseTaxReportLine(lineReader) : null;
         }
+    }
 
-        return writtenToFile;
+    /**
+     * Parse the current line of a ReportLineReader as a tax report record. Lines written before records carried a
+     * timestamp have no fourth column and get noTimestamp.
+     *
+     * @param lineReader ReportLineReader positioned on the line to parse.
+     * @return TaxReportEntry or null if the line is blank or the heading line of the table.
+     * @throws IOException error thrown if the line is not a valid record, the message includes the line number.
+     */
+    public static TaxReportEntry parseTaxReportLine(ReportLineReader lineReader) throws IOException {
+        //Skip blank lines and the heading line of the table
+        if (lineReader.isBlank() || lineReader.atLetter()) {
+            return null;
+        }
+        try {
+            long employeeId = lineReader.parseLong();
+            lineReader.skipWhitespace();
+            double employeeIncome = lineReader.parseAmount();
+            lineReader.skipWhitespace();
+            double totalTax = lineReader.parseAmount();
+            lineReader.skipWhitespace();
+            long timestamp = noTimestamp;
+            if (lineReader.atDigit()) {
+                timestamp = lineReader.parseLong();
+                //Anything other than a plain whole number (such as a second record run into the line) is not a timestamp.
+                if (!lineReader.isBlank()) {
+                    timestamp = noTimestamp;
+                }
+            }
+            return new TaxReportEntry(employeeId, employeeIncome, totalTax, timestamp);
+        } catch (NumberFormatException invalidLine) {
+            throw new IOException("Invalid tax report record at line " + lineReader.getLineNumber() + ": "
+                    + lineReader.currentLine(), invalidLine);
+        }
     }
 
     /**
@@ -102,7 +419,7 @@ public class TaxReportFileManager {
 
                 //Check for employee id
                 String employeeIdString = scanner.findInLine(employeeIdPattern);
-                int employeeId = Integer.valueOf(employeeIdString);
+                long employeeId = Long.valueOf(employeeIdString);
                 //Consume spaces to skip
                 scanner.findInLine(spacePattern);
 
@@ -138,43 +455,42 @@ public class TaxReportFileManager {
         return taxReportEntries;
     }
 
+    /**
+     * A batch of records handed to writeTaxReportEntries, queued until a thread holding appendLock writes it. The
+     * arrays are not copied, the thread that queued the batch waits until it has been written.
+     */
+    private static class PendingBatch {
+
+        private final String taxReportFilePath;
+        private final long[] employeeIds;
+        private final double[] employeeIncomes;
+        private final double[] totalTaxes;
+        private final int count;
+        //Set while holding appendLock once the batch has been written or has failed.
+        private boolean done = false;
+        private boolean written = false;
+
+        private PendingBatch(String taxReportFilePath, long[] employeeIds, double[] employeeIncomes, double[] totalTaxes,
+                             int count) {
+            this.taxReportFilePath = taxReportFilePath;
+            this.employeeIds = employeeIds;
+            this.employeeIncomes = employeeIncomes;
+            this.totalTaxes = totalTaxes;
+            this.count = count;
+        }
+    }
 }
 
 /**
- * TaxReportEntry Object used for storing employeeId, employeeIncome and Tax amounts
+ * Action run by TaxReportFileManager.runWithAppendLock while appends to the tax report file are locked out.
  */
-class TaxReportEntry {
-
-    private int employeeId = 0;
-    private double employeeIncome = 0.0;
-    private double tax = 0.0;
+interface LockedReportAction {
 
-    public TaxReportEntry(int employeeId, double employeeIncome, double tax) {
-        this.employeeId = employeeId;
-        this.employeeIncome = employeeIncome;
-        this.tax = tax;
-    }
-
-    public int getEmployeeId() {
-        return employeeId;
-    }
-
-    public double getEmployeeIncome() {
-        return employeeIncome;
-    }
-
-    public double getTax() {
-        return tax;
-    }
-
-    //Method override toString() used mainly for printing the object to display to the user.
-    @Override
-    public String toString() {
-        String employeeIdString = String.format("%04d", employeeId);
-        String employeeIncomeString = String.format("%.2f", employeeIncome);
-        String totalTaxString = String.format("%.2f", tax);
-        return "For Employee ID: " + employeeIdString + "" +
-                "\nIncome is: $" + employeeIncomeString + "" +
-                "\nTax on that income was: $" + totalTaxString;
-    }
-}
\ No newline at end of file
+    /**
+     * Run the action.
+     *
+     * @param taxReportFilePath String absolute path of the tax report file.
+     * @throws IOException errors of the action are passed on.
+     */
+    void run(String taxReportFilePath) throws IOException;
+}
@@ -0,0 +1,215 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * TaxReportIndex finds the latest record of an employee in a tax report file without loading the file. It keeps an
+ * EmployeeIdIndex of employee id to the byte offset of the employee's latest line, so a search reads a single line.
+ *
+ * The index is saved next to the tax report file (taxreport.txt.idx) and memory-mapped when opened. Records appended
+ * after it was saved are indexed into a small in-memory tail index on open, and once the tail is long compared with
+ * the part of the file the saved index covers, the two are merged and saved again, so the tail read on every open
+ * stays short however the file grows (even when the appends keep updating the same few employees). A saved index
+ * that covers more bytes than the file has, or that points at a line of a different employee, is thrown away and
+ * rebuilt from the file. Other processes append while the index is read, so a last line without a line terminator may
+ * be a record still being written: it is left out of the index and read once it is complete.
+ */
+public class TaxReportIndex {
+
+    //Suffix added to the tax report file name for its saved index.
+    public static final String indexFileSuffix = ".idx";
+    //The saved index is saved again once the bytes after it are more than this share of the bytes it covers, or more
+    //than the size of the saved index (and at least minimumTailBytes), so the tail read on open is at most about an
+    //eighth of the file and no longer than it takes to save the index again.
+    private static final double maxTailShare = 0.125;
+    private static final long minimumTailBytes = 1 << 18;
+
+    private final String taxReportPathName;
+    //Index loaded from the saved file, or null if everything is in the tail index.
+    private EmployeeIdIndex savedIndex;
+    //Index of the records after the part covered by savedIndex.
+    private EmployeeIdIndex tailIndex;
+
+    private TaxReportIndex(String taxReportPathName, EmployeeIdIndex savedIndex, EmployeeIdIndex tailIndex) {
+        this.taxReportPathName = taxReportPathName;
+        this.savedIndex = savedIndex;
+        this.tailIndex = tailIndex;
+    }
+
+    /**
+     * Open the index of a tax report file, loading the saved index if it is still valid and indexing whatever was
+     * appended since. If there is no usable saved index the whole file is indexed and the index saved for next time.
+     *
+     * @param taxReportPathName String path to the tax report file.
+     * @return TaxReportIndex ready for lookups.
+     * @throws IOException error thrown if the tax report file can not be found or read, or a line is not a valid record.
+     */
+    public static TaxReportIndex open(String taxReportPathName) throws IOException {
+        File taxReportFile = new File(taxReportPathName);
+        if (!taxReportFile.isFile()) {
+            throw new FileNotFoundException(taxReportFile.getAbsolutePath() + " was not found.");
+        }
+        String indexPathName = taxReportFile.getAbsolutePath() + indexFileSuffix;
+        //Records of an interrupted seal must be cut from the file before it is indexed.
+        TaxReportArchive.finishInterruptedSeal(taxReportPathName);
+
+        EmployeeIdIndex savedIndex = null;
+        if (new File(indexPathName).isFile()) {
+            try {
+                savedIndex = EmployeeIdIndex.load(indexPathName);
+                if (!isLineStart(taxReportFile, savedIndex.getSourceLength())) {
+                    //The report file was replaced or cut short since the index was saved.
+                    savedIndex = null;
+                }
+            } catch (IOException damagedIndex) {
+                savedIndex = null;
+            }
+        }
+
+        EmployeeIdIndex tailIndex = new EmployeeIdIndex(1024);
+        long indexedLength;
+        try {
+            indexedLength = indexRecords(taxReportPathName, savedIndex == null ? 0 : savedIndex.getSourceLength(), tailIndex);
+        } catch (IOException invalidTail) {
+            if (savedIndex == null) {
+                throw invalidTail;
+            }
+            //The saved index does not end where a record of this file starts, index the whole file again.
+            savedIndex = null;
+            tailIndex = new EmployeeIdIndex(1024);
+            indexedLength = indexRecords(taxReportPathName, 0, tailIndex);
+        }
+
+        if (savedIndex == null
+                || isTailTooLong(savedIndex.getSourceLength(), indexedLength, new File(indexPathName).length())) {
+            EmployeeIdIndex mergedIndex = new EmployeeIdIndex((savedIndex == null ? 0 : savedIndex.size()) + tailIndex.size());
+            if (savedIndex != null) {
+                mergedIndex.putAll(savedIndex);
+            }
+            mergedIndex.putAll(tailIndex);
+            mergedIndex.setSourceLength(indexedLength);
+            saveIndex(mergedIndex, indexPathName);
+            savedIndex = null;
+            tailIndex = mergedIndex;
+        }
+        return new TaxReportIndex(taxReportPathName, savedIndex, tailIndex);
+    }
+
+    /**
+     * Check whether the records after the saved index are too many bytes to keep reading them on every open. Saving
+     * the index again costs about the size of the saved index, so a small index is saved again after a short tail.
+     *
+     * @param savedLength     long the length of the file covered by the saved index.
+     * @param indexedLength   long the length of the file indexed so far.
+     * @param savedIndexBytes long the size of the saved index file.
+     * @return boolean true if the index should be saved again.
+     */
+    static boolean isTailTooLong(long savedLength, long indexedLength, long savedIndexBytes) {
+        long allowedTail = Math.max(minimumTailBytes, Math.min((long) (savedLength * maxTailShare), savedIndexBytes));
+        return indexedLength - savedLength > allowedTail;
+    }
+
+    /**
+     * Check whether a saved index length can still be where a line of the file starts: not past the end of the file
+     * and just after a line terminator. A saved index that fails this covers a file that was since replaced or cut.
+     *
+     * @param taxReportFile File the tax report file.
+     * @param offset        long the length of the file covered by the saved index.
+     * @return boolean true if the offset is 0 or just after a "\n" of the file.
+     * @throws IOException error thrown if the file can not be read.
+     */
+    static boolean isLineStart(File taxReportFile, long offset) throws IOException {
+        if (offset == 0) {
+            return true;
+        }
+        if (offset > taxReportFile.length()) {
+            return false;
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(taxReportFile, "r")) {
+            randomAccessFile.seek(offset - 1);
+            return randomAccessFile.read() == '\n';
+        }
+    }
+
+    /**
+     * Save the index, if it can not be saved it still works from memory and is just built again next time.
+     */
+    private static void saveIndex(EmployeeIdIndex index, String indexPathName) {
+        try {
+            index.save(indexPathName);
+        } catch (IOException notSaved) {
+            System.out.println("[ Tax Reports ] Issue : The index could not be saved to " + indexPathName);
+        }
+    }
+
+    /**
+     * Add the offset of every record from the given byte offset to the end of the file to the index. Later records of
+     * the same employee replace earlier ones, so the index ends up pointing at each employee's latest record. A last
+     * line without a line terminator may still be being written, it is not indexed.
+     *
+     * @param taxReportPathName String path to the tax report file.
+     * @param fromOffset        long byte offset to start from, it must be the start of a line.
+     * @param index             EmployeeIdIndex the index to add to.
+     * @return long the length of the file that has been indexed, always just after a line terminator.
+     * @throws IOException error thrown if the file can not be read or a line is not a valid record.
+     */
+    public static long indexRecords(String taxReportPathName, long fromOffset, EmployeeIdIndex index) throws IOException {
+        FileInputStream fileInputStream = new FileInputStream(new File(taxReportPathName).getAbsolutePath());
+        fileInputStream.getChannel().position(fromOffset);
+        long indexedLength = fromOffset;
+        try (ReportLineReader lineReader = new ReportLineReader(fileInputStream)) {
+            while (lineReader.nextLine() && lineReader.isLineTerminated()) {
+                TaxReportEntry taxReportEntry = TaxReportFileManager.parseTaxReportLine(lineReader);
+                if (taxReportEntry != null) {
+                    index.put(taxReportEntry.getEmployeeId(), fromOffset + lineReader.getLineOffset());
+                }
+                indexedLength = fromOffset + lineReader.getNextLineOffset();
+            }
+        }
+        return indexedLength;
+    }
+
+    /**
+     * Find the latest record of an employee.
+     *
+     * @param employeeId long the employee id to search for.
+     * @return TaxReportEntry or null if the employee has no record.
+     * @throws IOException error thrown if the tax report file can not be read.
+     */
+    public TaxReportEntry findLatest(long employeeId) throws IOException {
+        long offset = tailIndex.get(employeeId);
+        if (offset == EmployeeIdIndex.notFound && savedIndex != null) {
+            offset = savedIndex.get(employeeId);
+        }
+        if (offset == EmployeeIdIndex.notFound) {
+            return null;
+        }
+        TaxReportEntry taxReportEntry;
+        try {
+            taxReportEntry = TaxReportFileManager.readTaxReportEntryAt(taxReportPathName, offset);
+        } catch (IOException invalidLine) {
+            //The offset is no longer the start of a record, handled below like a record of another employee.
+            taxReportEntry = null;
+        }
+        if (taxReportEntry == null || taxReportEntry.getEmployeeId() != employeeId) {
+            //The saved index does not match the file any more, index the whole file again and retry.
+            rebuild();
+            offset = tailIndex.get(employeeId);
+            return offset == EmployeeIdIndex.notFound ? null : TaxReportFileManager.readTaxReportEntryAt(taxReportPathName, offset);
+        }
+        return taxReportEntry;
+    }
+
+    /**
+     * Index the whole file from the start and save the index (as far as it can be saved), replacing the saved one.
+     */
+    private void rebuild() throws IOException {
+        EmployeeIdIndex index = new EmployeeIdIndex(tailIndex.size() + (savedIndex == null ? 0 : savedIndex.size()));
+        index.setSourceLength(indexRecords(taxReportPathName, 0, index));
+        saveIndex(index, new File(taxReportPathName).getAbsolutePath() + indexFileSuffix);
+        savedIndex = null;
+        tailIndex = index;
+    }
+}
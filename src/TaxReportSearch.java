@@ -1,12 +1,14 @@
 import java.io.FileNotFoundException;
-import java.util.Collections;
+import java.io.IOException;
 import java.util.LinkedList;
 
 /**
  * TaxReportSearch class takes care of reading the taxreports.txt file and performing searches over the data.
- * It loads the data read from the file onto a LinkedList of TaxReportEntry objects (LinkedList chosen due to the
- * ability to grow and maintain order) (Order is important as earliest and latest entries must be kept in order for
- * retrieval purposes in case one employee ID has multiple records).
+ * Searches go through a TaxReportIndex, which maps each employee ID to the position of its latest record in the file,
+ * so only the matching line is read (the latest entry must be returned in case one employee ID has multiple records).
+ * Records sealed into compressed segments by TaxReportArchive are searched after the active file, skipping every
+ * segment whose id or time range can not hold a match.
+ * The LinkedList based searchID is kept for callers that already have the entries loaded.
  */
 public class TaxReportSearch {
 
@@ -16,37 +18,43 @@ public class TaxReportSearch {
      * Search Tax Rerports main method with input validation provided by the TaxSystemUI class and file check prior to processing.
      */
     public static void searchTaxReports() {
-        LinkedList<TaxReportEntry> taxReportEntries = null;
+        TaxReportIndex taxReportIndex = null;
+        String taxReportPathName = taxReportFileName;
 
         try {
-            taxReportEntries = TaxReportFileManager.readTaxReportEntries(taxReportFileName);
+            taxReportIndex = TaxReportIndex.open(taxReportFileName);
             System.out.println("[ Tax Reports ] File Loaded Successfully");
         } catch (FileNotFoundException e) {
             //File taxreport.txt was not found in the current working directory. Prompt the user to find it and provide the path (relative or absolute)
             System.out.println("[ Tax Reports ] Issue : Tax Reports File was not found. " + taxReportFileName);
             String newTaxReportFilePath = TaxSystemUI.promptForPath("\nPlease provide the Tax Report file. It should be called \"" + taxReportFileName + "\"", taxReportFileName);
             try {
-                taxReportEntries = TaxReportFileManager.readTaxReportEntries(newTaxReportFilePath);
+                taxReportIndex = TaxReportIndex.open(newTaxReportFilePath);
+                taxReportPathName = newTaxReportFilePath;
                 System.out.println("[ Tax Reports ] File Loaded Successfully");
             } catch (Exception ex) {
-                //Warn user that the file was not read properly as the file or its contents may be invalid.
-                System.out.println("[ Tax Reports ] Issue : The file could not be loaded successfully, please make sure the file contains valid tax report information, including the corresponding headers." +
-                        "\n\"Employee ID   Taxable Income   Tax\"");
+                printInvalidFileWarning();
                 //Return void to prevent further method execution until user reviews the file and tries again.
                 return;
             }
+        } catch (IOException e) {
+            printInvalidFileWarning();
+            return;
         }
 
-        //If the file was read correctly, and the entries is not null (the LinkedList was initiated and assigned)
-        if (taxReportEntries != null) {
-            //Reverse the entries (Important step in order to be able to easily search backwards) another option is to use a doubly linked list.
-            Collections.reverse(taxReportEntries);
+        //If the file was read correctly, and the index is not null (the index was opened and assigned)
+        if (taxReportIndex != null) {
             do {
                 //Prompt user for the employee ID to search for:
-                int employeeId = TaxSystemUI.promptForID("\nPlease enter the four digit Employee ID to SEARCH for tax reports based on income:");
+                long employeeId = TaxSystemUI.promptForID("\nPlease enter the Employee ID (four or more digits) to SEARCH for tax reports based on income:");
 
-                //Call the searchID function, it will either return an TaxReportEntry object or null
-                TaxReportEntry taxReportEntryResult = searchID(taxReportEntries, employeeId);
+                //Look up the latest entry, it will either return an TaxReportEntry object or null
+                TaxReportEntry taxReportEntryResult = null;
+                try {
+                    taxReportEntryResult = searchLatest(taxReportIndex, taxReportPathName, employeeId);
+                } catch (IOException e) {
+                    System.out.println("[ Tax Reports ] Issue : The file could not be read. " + e.getMessage());
+                }
 
                 //If a result was returned and not null
                 if (taxReportEntryResult != null) {
@@ -63,15 +71,84 @@ public class TaxReportSearch {
 
     }
 
+    /**
+     * Search for the latest record of an employee, the same way as the Search Tax menu option: through the
+     * TaxReportIndex of the active file, and only if the employee has no record there through the sealed segments.
+     *
+     * @param taxReportPathName String path to the tax report file.
+     * @param employeeId        long number corresponding to the employee id of the employee to search and match.
+     * @return TaxReportEntry or NULL TaxReportEntry returned indicates that a matching entry was found.
+     * @throws IOException error thrown if the tax report file can not be found or read.
+     */
+    public static TaxReportEntry searchLatest(String taxReportPathName, long employeeId) throws IOException {
+        return searchLatest(TaxReportIndex.open(taxReportPathName), taxReportPathName, employeeId);
+    }
+
+    private static TaxReportEntry searchLatest(TaxReportIndex taxReportIndex, String taxReportPathName, long employeeId)
+            throws IOException {
+        TaxReportEntry latest = taxReportIndex.findLatest(employeeId);
+        //Only if the employee has no record in the active file are the sealed segments searched.
+        return latest != null ? latest : TaxReportArchive.findLatest(taxReportPathName, employeeId);
+    }
+
+    /**
+     * Search for the latest record of an employee as it stood at the given time, that is the record with the latest
+     * timestamp at or before it. The employee's latest record overall is checked first through the TaxReportIndex, and
+     * only if it is newer than the time is the TimestampBlockIndex used to read back through the older blocks. The
+     * sealed segments are then checked for a record with a later timestamp still, which only reads the segments whose
+     * id range holds the employee and whose timestamps are later than the record found.
+     *
+     * @param taxReportPathName String path to the tax report file.
+     * @param employeeId        long number corresponding to the employee id of the employee to search and match.
+     * @param asOf              long the time in epoch milliseconds.
+     * @return TaxReportEntry or NULL TaxReportEntry returned indicates that a matching entry was found.
+     * @throws IOException error thrown if the tax report file can not be found or read.
+     */
+    public static TaxReportEntry searchIDAsOf(String taxReportPathName, long employeeId, long asOf) throws IOException {
+        TaxReportEntry latest = TaxReportIndex.open(taxReportPathName).findLatest(employeeId);
+        if (latest != null && latest.getTimestamp() > asOf) {
+            latest = TimestampBlockIndex.open(taxReportPathName).findLatestAsOf(employeeId, asOf);
+        }
+        TaxReportEntry sealed = TaxReportArchive.findLatestAsOf(taxReportPathName, employeeId,
+                latest == null ? Long.MIN_VALUE : latest.getTimestamp(), asOf);
+        return sealed != null ? sealed : latest;
+    }
+
+    /**
+     * Search for every record written from one time to another (both included), reading only the sealed segments and
+     * the parts of the active file that the TimestampBlockIndex shows can hold them.
+     *
+     * @param taxReportPathName String path to the tax report file.
+     * @param fromTimestamp     long start of the range in epoch milliseconds.
+     * @param toTimestamp       long end of the range in epoch milliseconds.
+     * @param handler           TaxReportEntryHandler called for each record found, in file order.
+     * @return long the number of records found.
+     * @throws IOException error thrown if the tax report file can not be found or read.
+     */
+    public static long searchBetween(String taxReportPathName, long fromTimestamp, long toTimestamp,
+                                     TaxReportEntryHandler handler) throws IOException {
+        TimestampBlockIndex timestampBlockIndex = TimestampBlockIndex.open(taxReportPathName);
+        long found = TaxReportArchive.findRecordsBetween(taxReportPathName, fromTimestamp, toTimestamp, handler);
+        return found + timestampBlockIndex.findRecordsBetween(fromTimestamp, toTimestamp, handler);
+    }
+
+    /**
+     * Warn user that the file was not read properly as the file or its contents may be invalid.
+     */
+    private static void printInvalidFileWarning() {
+        System.out.println("[ Tax Reports ] Issue : The file could not be loaded successfully, please make sure the file contains valid tax report information, including the corresponding headers." +
+                "\n\"Employee ID   Taxable Income   Tax\"");
+    }
+
     /**
      * Search the TaxReportEntries LinkedList to find the TaxReportEntry that contains the employeeId that the user
      * is looking for. The LinkedList MUST be reversed before this method is called.
      *
      * @param reversedTaxReportEntries LinkedList<TaxReportEntry> list of TaxReportEntry files that must be initiated and loaded from file.
-     * @param employeeId int number corresponding to the employee id of the employee to search and match.
+     * @param employeeId long number corresponding to the employee id of the employee to search and match.
      * @return TaxReportEntry or NULL TaxReportEntry returned indicates that a matching entry was found.
      */
-    public static TaxReportEntry searchID(LinkedList<TaxReportEntry> reversedTaxReportEntries, int employeeId) {
+    public static TaxReportEntry searchID(LinkedList<TaxReportEntry> reversedTaxReportEntries, long employeeId) {
         for (TaxReportEntry taxEntry : reversedTaxReportEntries) {
             if (taxEntry.getEmployeeId() == employeeId) {
                 return taxEntry;
@@ -0,0 +1,289 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TaxReportSelfCheck runs quick checks of the tax report files that are easy to get wrong and hard to notice by hand,
+ * such as the saved index falling behind a file that keeps growing, a record read while it is half written, a seal
+ * interrupted half way or sealing records it should leave in the active file, or a load test at full speed that never
+ * stops. Each check builds its own files in a temporary directory, so the real taxreport.txt is never touched, and
+ * prints OK or the issues it found.
+ */
+public class TaxReportSelfCheck {
+
+    //Employees updated over and over by the index check, far fewer than the records written for them.
+    private static final int indexCheckEmployees = 8;
+    private static final int indexCheckRounds = 400;
+    private static final int indexCheckRecordsPerRound = 100;
+    //Records sealed by the interrupted seal check, and records appended after the interruption.
+    private static final int sealCheckRecords = 3000;
+    private static final int sealCheckLaterRecords = 500;
+    //Records older than the cutoff of the seal cutoff check (every other id, so the ids in between are in the id range
+    //of the segment but not in it), and newer records that must stay in the active file.
+    private static final int cutoffCheckOldRecords = 2000;
+    private static final int cutoffCheckNewRecords = 100;
+    //Largest share of ids in a segment's id range but not in the segment that its id filter may let through, in percent.
+    private static final int cutoffCheckMaxFalsePercent = 5;
+    //A load test of one second at full speed is given this long to finish (JVM start up included).
+    private static final int loadTestTimeoutSeconds = 60;
+
+    /**
+     * Run every check and print the results.
+     *
+     * @return boolean true if every check passed.
+     * @throws IOException error thrown if the temporary files could not be written or read.
+     */
+    public boolean run() throws IOException {
+        List<String> problems = new ArrayList<>();
+        File directory = Files.createTempDirectory("taxreport-check").toFile();
+        try {
+            checkIndexCoversTail(new File(directory, "index-" + TaxReportFileManager.taxReportFileName), problems);
+            checkHalfWrittenLine(new File(directory, "torn-" + TaxReportFileManager.taxReportFileName), problems);
+            checkInterruptedSeal(new File(directory, "seal-" + TaxReportFileManager.taxReportFileName), problems);
+            checkSealCutoff(new File(directory, "cutoff-" + TaxReportFileManager.taxReportFileName), problems);
+            File loadTestDirectory = new File(directory, "loadtest");
+            if (!loadTestDirectory.mkdir()) {
+                throw new IOException("The directory " + loadTestDirectory + " could not be created");
+            }
+            checkUnlimitedLoadTestEnds(loadTestDirectory, problems);
+        } finally {
+            TaxReportStressTest.deleteDirectory(directory);
+        }
+        for (String problem : problems) {
+            System.out.println("[ Check ] Issue : " + problem);
+        }
+        return problems.isEmpty();
+    }
+
+    /**
+     * Append many records for a few employees, opening the index after each round as a search would, and check that
+     * the saved index keeps up with the file rather than leaving an ever longer tail to be read on every open.
+     */
+    private void checkIndexCoversTail(File taxReportFile, List<String> problems) throws IOException {
+        String taxReportPathName = taxReportFile.getPath();
+        long[] employeeIds = new long[indexCheckRecordsPerRound];
+        double[] employeeIncomes = new double[indexCheckRecordsPerRound];
+        for (int round = 0; round < indexCheckRounds; round++) {
+            for (int i = 0; i < indexCheckRecordsPerRound; i++) {
+                employeeIds[i] = 1000 + i % indexCheckEmployees;
+                employeeIncomes[i] = round * indexCheckRecordsPerRound + i;
+            }
+            appendRecords(taxReportFile, employeeIds, employeeIncomes);
+            TaxReportIndex taxReportIndex = TaxReportIndex.open(taxReportPathName);
+            TaxReportEntry latest = taxReportIndex.findLatest(employeeIds[indexCheckRecordsPerRound - 1]);
+            if (latest == null || latest.getEmployeeIncome() != employeeIncomes[indexCheckRecordsPerRound - 1]) {
+                problems.add("Index search after round " + round + " found " + latest + " instead of the latest record");
+                return;
+            }
+        }
+
+        File indexFile = new File(taxReportFile.getAbsolutePath() + TaxReportIndex.indexFileSuffix);
+        long savedLength = EmployeeIdIndex.load(indexFile.getPath()).getSourceLength();
+        if (TaxReportIndex.isTailTooLong(savedLength, taxReportFile.length(), indexFile.length())) {
+            problems.add("The saved index covers " + savedLength + " of " + taxReportFile.length()
+                    + " bytes, the rest is read again on every open");
+            return;
+        }
+        System.out.println("[ Check ] OK : Saved index covers " + savedLength + " of " + taxReportFile.length()
+                + " bytes after " + indexCheckRounds * indexCheckRecordsPerRound + " appends for " + indexCheckEmployees + " employees");
+    }
+
+    /**
+     * Open the indexes while the last record of the file is only half written, as a reader that does not take the
+     * append lock may, then finish the record and append another. Check that both are found afterwards. The half
+     * written record is the last of the first timestamp block, so the block must not be closed before it is complete.
+     */
+    private void checkHalfWrittenLine(File taxReportFile, List<String> problems) throws IOException {
+        String taxReportPathName = taxReportFile.getPath();
+        int firstRecords = TimestampBlockIndex.recordsPerBlock - 1;
+        appendRecords(taxReportFile, sequentialIds(5555, firstRecords), new double[firstRecords]);
+        byte[] lastRecord = "1234    100.00    5.00    1700000000001\n".getBytes(StandardCharsets.US_ASCII);
+        int tornAt = lastRecord.length / 2;
+        try (FileOutputStream outputStream = new FileOutputStream(taxReportFile, true)) {
+            outputStream.write(lastRecord, 0, tornAt);
+        }
+        TaxReportIndex.open(taxReportPathName).findLatest(5555);
+        TimestampBlockIndex.open(taxReportPathName);
+
+        try (FileOutputStream outputStream = new FileOutputStream(taxReportFile, true)) {
+            outputStream.write(lastRecord, tornAt, lastRecord.length - tornAt);
+        }
+        appendRecords(taxReportFile, sequentialIds(9999, 1), new double[]{20});
+        try {
+            TaxReportIndex taxReportIndex = TaxReportIndex.open(taxReportPathName);
+            TaxReportEntry finished = taxReportIndex.findLatest(1234);
+            TaxReportEntry appended = taxReportIndex.findLatest(9999);
+            if (finished == null || finished.getEmployeeIncome() != 100 || appended == null) {
+                problems.add("After a half written record was finished the index found " + finished + " and " + appended);
+                return;
+            }
+            TaxReportEntry finishedAsOf = TimestampBlockIndex.open(taxReportPathName).findLatestAsOf(1234, 1700000000001L);
+            if (finishedAsOf == null || finishedAsOf.getEmployeeIncome() != 100) {
+                problems.add("After a half written record was finished the timestamp index found " + finishedAsOf);
+                return;
+            }
+        } catch (IOException readFailed) {
+            problems.add("After a half written record was finished the indexes could not be read: " + readFailed.getMessage());
+            return;
+        }
+        System.out.println("[ Check ] OK : A half written last record was left out of the indexes until it was finished");
+    }
+
+    /**
+     * Leave a tax report as a seal interrupted just after saving its seal marker would: the sealed records still in
+     * the active file and the segment still under its temporary name, then append more records as other writers may
+     * have since. Check that reading the report finishes the seal, so every record is read exactly once and the
+     * records appended since stay in the active file.
+     */
+    private void checkInterruptedSeal(File taxReportFile, List<String> problems) throws IOException {
+        String taxReportPathName = taxReportFile.getPath();
+        appendRecords(taxReportFile, sequentialIds(2000, sealCheckRecords), new double[sealCheckRecords]);
+        byte[] unsealed = Files.readAllBytes(taxReportFile.toPath());
+        List<SegmentInfo> sealed = TaxReportArchive.sealTaxReport(taxReportPathName, Long.MAX_VALUE);
+
+        Files.write(taxReportFile.toPath(), unsealed);
+        for (SegmentInfo segment : sealed) {
+            Files.move(segment.file.toPath(), new File(segment.file.getPath() + ".tmp").toPath());
+        }
+        TaxReportArchive.writeSealMarker(TaxReportArchive.getSegmentDirectory(taxReportPathName), unsealed.length,
+                TaxReportArchive.checksumOf(taxReportFile, unsealed.length), sealed);
+        appendRecords(taxReportFile, sequentialIds(2000 + sealCheckRecords, sealCheckLaterRecords),
+                new double[sealCheckLaterRecords]);
+
+        final int[] timesRead = new int[sealCheckRecords + sealCheckLaterRecords];
+        TaxReportArchive.streamAllTaxReportEntries(taxReportPathName,
+                (lineNumber, taxReportEntry) -> timesRead[(int) (taxReportEntry.getEmployeeId() - 2000)]++);
+        for (int i = 0; i < timesRead.length; i++) {
+            if (timesRead[i] != 1) {
+                problems.add("After an interrupted seal record " + (2000 + i) + " was read " + timesRead[i] + " times");
+                return;
+            }
+        }
+        long activeRecords = TaxReportFileManager.streamTaxReportEntries(taxReportPathName, (lineNumber, taxReportEntry) -> {
+        });
+        if (activeRecords != sealCheckLaterRecords || TaxReportIndex.open(taxReportPathName).findLatest(2000) != null) {
+            problems.add("After an interrupted seal the active file holds " + activeRecords + " records instead of the "
+                    + sealCheckLaterRecords + " appended after it");
+            return;
+        }
+        System.out.println("[ Check ] OK : Interrupted seal finished on read, " + sealCheckRecords + " sealed and "
+                + sealCheckLaterRecords + " later records each read once");
+    }
+
+    /**
+     * Seal a tax report with a cutoff between two lots of records and check that only the older ones were sealed, the
+     * newer ones staying in the active file, and that the id filter of the segment lets every id it holds through but
+     * rules out most of the ids between them that it does not hold.
+     */
+    private void checkSealCutoff(File taxReportFile, List<String> problems) throws IOException {
+        String taxReportPathName = taxReportFile.getPath();
+        long[] oldIds = new long[cutoffCheckOldRecords];
+        for (int i = 0; i < oldIds.length; i++) {
+            oldIds[i] = 4000 + 2 * i;
+        }
+        appendRecords(taxReportFile, oldIds, new double[cutoffCheckOldRecords]);
+        long cutoff = System.currentTimeMillis() + 1;
+        while (System.currentTimeMillis() < cutoff) {
+            Thread.yield();
+        }
+        appendRecords(taxReportFile, sequentialIds(9000, cutoffCheckNewRecords), new double[cutoffCheckNewRecords]);
+
+        List<SegmentInfo> sealed = TaxReportArchive.sealTaxReport(taxReportPathName, cutoff);
+        long activeRecords = TaxReportFileManager.streamTaxReportEntries(taxReportPathName, (lineNumber, taxReportEntry) -> {
+        });
+        if (sealed.size() != 1 || sealed.get(0).recordCount != cutoffCheckOldRecords || activeRecords != cutoffCheckNewRecords
+                || TaxReportIndex.open(taxReportPathName).findLatest(9000) == null) {
+            problems.add("A seal with a cutoff sealed " + (sealed.isEmpty() ? 0 : sealed.get(0).recordCount)
+                    + " records and left " + activeRecords + " instead of " + cutoffCheckOldRecords + " and " + cutoffCheckNewRecords);
+            return;
+        }
+        SegmentInfo segment = TaxReportArchive.listSegments(taxReportPathName).get(0);
+        int falsePositives = 0;
+        for (long employeeId : oldIds) {
+            if (!segment.mayHoldEmployee(employeeId)) {
+                problems.add("The id filter of a segment ruled out employee " + employeeId + " that it holds");
+                return;
+            }
+            if (segment.mayHoldEmployee(employeeId + 1)) {
+                falsePositives++;
+            }
+        }
+        if (falsePositives * 100 > cutoffCheckMaxFalsePercent * cutoffCheckOldRecords) {
+            problems.add("The id filter of a segment let " + falsePositives + " of " + cutoffCheckOldRecords
+                    + " ids it does not hold through");
+            return;
+        }
+        System.out.println("[ Check ] OK : Seal with a cutoff kept the " + cutoffCheckNewRecords + " newer records active, the id filter let "
+                + falsePositives + " of " + cutoffCheckOldRecords + " ids not sealed through");
+    }
+
+    /**
+     * Run a load test with rate=0 (as fast as possible) for one second in its own process and check that it ends,
+     * with searches through the records it writes.
+     */
+    private void checkUnlimitedLoadTestEnds(File directory, List<String> problems) throws IOException {
+        String taxRates = "Taxable Income\t\t\tTax on Income\n"
+                + "0 - $18,200\t\t\t\t0\n"
+                + "$18,201 - $37,000\t\t19c for each $1 over $18,200\n"
+                + "$37,001 and over\t\t$3,572 plus 32.5c for each $1 over $37,000\n";
+        Files.write(new File(directory, "taxrates.txt").toPath(), taxRates.getBytes(StandardCharsets.UTF_8));
+        File logFile = new File(directory, "loadtest.log");
+
+        String javaPath = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder processBuilder = new ProcessBuilder(javaPath, "-cp", System.getProperty("java.class.path"),
+                "TaxManagementSystem", "loadtest", "duration=1", "rate=0", "search=0.5", "employees=100", "interval=1");
+        processBuilder.directory(directory);
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(logFile);
+        Process loadTest = processBuilder.start();
+        try {
+            if (!loadTest.waitFor(loadTestTimeoutSeconds, TimeUnit.SECONDS)) {
+                loadTest.destroyForcibly().waitFor();
+                problems.add("loadtest with rate=0 and duration=1 was still running after " + loadTestTimeoutSeconds + "s");
+                return;
+            }
+        } catch (InterruptedException e) {
+            loadTest.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the load test", e);
+        }
+        if (loadTest.exitValue() != 0) {
+            List<String> log = Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8);
+            problems.add("loadtest with rate=0 failed with exit status " + loadTest.exitValue()
+                    + (log.isEmpty() ? "" : ": " + log.get(log.size() - 1)));
+            return;
+        }
+        System.out.println("[ Check ] OK : loadtest with rate=0 and duration=1 ended");
+    }
+
+    private static long[] sequentialIds(long firstId, int count) {
+        long[] employeeIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            employeeIds[i] = firstId + i;
+        }
+        return employeeIds;
+    }
+
+    /**
+     * Append records to a tax report file in the format of TaxReportFileManager, writing the heading to a new file.
+     */
+    private static void appendRecords(File taxReportFile, long[] employeeIds, double[] employeeIncomes) throws IOException {
+        byte[] lineSeparator = System.lineSeparator().getBytes();
+        boolean newFile = !taxReportFile.isFile() || taxReportFile.length() == 0;
+        try (ReportOutputBuffer outputBuffer = new ReportOutputBuffer(new FileOutputStream(taxReportFile, true))) {
+            if (newFile) {
+                outputBuffer.writeText(TaxReportFileManager.taxReportHeading);
+                outputBuffer.writeBytes(lineSeparator);
+            }
+            for (int i = 0; i < employeeIds.length; i++) {
+                TaxReportFileManager.writeTaxReportLine(outputBuffer, employeeIds[i], employeeIncomes[i], 0.0,
+                        System.currentTimeMillis(), lineSeparator);
+            }
+        }
+    }
+}
@@ -0,0 +1,385 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * TaxReportStressTest checks that concurrent appends to the tax report file stay correct and fast. It starts several
+ * processes, each with several threads, that all append numbered records to one taxreport.txt through
+ * TaxReportFileManager.writeTaxReportEntries, then reads the file back and checks that the heading was written once,
+ * that no line is torn or mixed with another, and that every writer's records are all there and in order.
+ * The same number of records is also written by a single writer, and the concurrent throughput must be at least
+ * minPercent of the single writer's. Every writer first appends records to a file of its own so both runs are measured
+ * with the append path already compiled, and a round that falls short is measured again (see maxRounds).
+ *
+ * Everything runs in temporary directories (the worker processes are started there), so the real taxreport.txt
+ * is never touched.
+ */
+public class TaxReportStressTest {
+
+    //Record ids are (writer + 1) * writerIdSpacing + sequence number, so each record says who wrote it and in which order.
+    private static final long writerIdSpacing = 1000000000L;
+    //Prefix of the line a worker prints with its start and end times.
+    private static final String workerResultPrefix = "STRESS ";
+    //Line a worker prints once its threads are ready, it then waits for a line on its input before they start writing.
+    private static final String workerReadyLine = "STRESS READY";
+    //Records each writer thread appends to a file of its own before its worker is ready (see warmUp).
+    private static final int warmUpRecords = 20000;
+    //A single run can be slowed down by the scheduler (all the processes share the cores), so if the concurrent
+    //throughput is too low both writers are measured again, up to this many rounds, and the best round counts.
+    private static final int maxRounds = 5;
+
+    private int processes = 4;
+    private int threads = 4;
+    private int records = 5000;
+    private int batch = 1;
+    //Lowest concurrent throughput accepted, as a percentage of the single writer's. On one core single rounds of
+    //4 processes x 4 threads measured 58-101% of a single writer with batch=1 and 46-115% with batch=16 (the spread is
+    //the scheduler, not the lock), and every run reached 80% within maxRounds.
+    private int minPercent = 80;
+
+    /**
+     * Build a stress test from "name=value" options, any option not given keeps its default.
+     * Options: processes, threads (per process), records (per thread), batch (records per writeTaxReportEntries call),
+     * minPercent (lowest concurrent throughput accepted, as a percentage of the single writer's).
+     *
+     * @param options String[] the options, each as "name=value".
+     * @throws IllegalArgumentException if an option is unknown or its value is invalid.
+     */
+    public TaxReportStressTest(String[] options) {
+        for (String option : options) {
+            int equals = option.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Options must be given as name=value: " + option);
+            }
+            String name = option.substring(0, equals);
+            int value = Integer.parseInt(option.substring(equals + 1));
+            switch (name) {
+                case "processes":
+                    processes = value;
+                    break;
+                case "threads":
+                    threads = value;
+                    break;
+                case "records":
+                    records = value;
+                    break;
+                case "batch":
+                    batch = value;
+                    break;
+                case "minPercent":
+                    minPercent = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if (processes < 1 || threads < 1 || records < 1 || batch < 1 || minPercent < 0) {
+            throw new IllegalArgumentException("Option out of range, expected processes, threads, records and batch >= 1 and minPercent >= 0");
+        }
+        //Each writer's records must fit in its range of ids, and the single writer writes all of them.
+        if (records >= writerIdSpacing || (long) processes * threads * records > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many records, expected fewer than " + writerIdSpacing
+                    + " per writer and " + Integer.MAX_VALUE + " in total");
+        }
+    }
+
+    /**
+     * Run the single writer and the concurrent writers, check the concurrent file and print the results.
+     *
+     * @return boolean true if the file written concurrently is correct.
+     * @throws IOException error thrown if a worker could not be started or the file could not be read.
+     */
+    public boolean run() throws IOException {
+        int writers = processes * threads;
+        long totalRecords = (long) writers * records;
+        List<String> problems = new ArrayList<>();
+        //Best concurrent throughput of the rounds run, as a percentage of the single writer's in the same round.
+        double concurrentPercent = 0;
+
+        for (int round = 1; round <= maxRounds && problems.isEmpty(); round++) {
+            File singleWriterDirectory = Files.createTempDirectory("taxreport-stress-single").toFile();
+            File concurrentDirectory = Files.createTempDirectory("taxreport-stress-concurrent").toFile();
+            try {
+                System.out.println("[ Stress ] Single writer: 1 process x 1 thread x " + totalRecords + " records, batch " + batch);
+                double singleWriterRate = runWorkers(singleWriterDirectory, 1, 1, (int) totalRecords);
+                System.out.printf("[ Stress ] Single writer: %.0f records/s%n", singleWriterRate);
+
+                System.out.println("[ Stress ] Concurrent: " + processes + " processes x " + threads + " threads x " + records
+                        + " records, batch " + batch);
+                double concurrentRate = runWorkers(concurrentDirectory, processes, threads, records);
+                System.out.printf("[ Stress ] Concurrent: %.0f records/s (%.0f%% of the single writer)%n",
+                        concurrentRate, concurrentRate * 100 / singleWriterRate);
+
+                problems.addAll(checkFile(new File(concurrentDirectory, TaxReportFileManager.taxReportFileName), writers));
+                concurrentPercent = Math.max(concurrentPercent, concurrentRate * 100 / singleWriterRate);
+            } finally {
+                deleteDirectory(singleWriterDirectory);
+                deleteDirectory(concurrentDirectory);
+            }
+            if (concurrentPercent >= minPercent) {
+                break;
+            }
+            if (round < maxRounds && problems.isEmpty()) {
+                System.out.println("[ Stress ] Concurrent throughput below " + minPercent + "%, measuring again");
+            }
+        }
+
+        if (problems.isEmpty() && concurrentPercent < minPercent) {
+            problems.add(String.format("Concurrent throughput is %.0f%% of the single writer (best of %d rounds), below the %d%% accepted",
+                    concurrentPercent, maxRounds, minPercent));
+        }
+        if (problems.isEmpty()) {
+            System.out.printf("[ Stress ] OK : %d records, heading written once, no torn, missing or reordered records, "
+                    + "concurrent throughput %.0f%% of the single writer%n", totalRecords, concurrentPercent);
+            return true;
+        }
+        for (String problem : problems) {
+            System.out.println("[ Stress ] Issue : " + problem);
+        }
+        return false;
+    }
+
+    /**
+     * Start the worker processes in the directory, wait for them and work out the combined throughput from the time
+     * the first worker started writing to the time the last one finished (so JVM start up is not counted).
+     */
+    private double runWorkers(File directory, int processCount, int threadCount, int recordsPerThread) throws IOException {
+        String javaPath = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classPath = System.getProperty("java.class.path");
+        List<Process> workers = new ArrayList<>();
+        for (int process = 0; process < processCount; process++) {
+            ProcessBuilder processBuilder = new ProcessBuilder(javaPath, "-cp", classPath, "TaxManagementSystem", "stressworker",
+                    String.valueOf(threadCount), String.valueOf(recordsPerThread), String.valueOf(batch),
+                    String.valueOf(process * threadCount));
+            processBuilder.directory(directory);
+            processBuilder.redirectErrorStream(true);
+            workers.add(processBuilder.start());
+        }
+
+        //Every worker is started and ready before any of them writes, so JVM start up does not slow down the others.
+        List<BufferedReader> outputs = new ArrayList<>();
+        for (Process worker : workers) {
+            BufferedReader output = new BufferedReader(new InputStreamReader(worker.getInputStream()));
+            outputs.add(output);
+            String line;
+            while ((line = output.readLine()) != null && !line.equals(workerReadyLine)) {
+                System.out.println("[ Stress ] worker: " + line);
+            }
+        }
+        for (Process worker : workers) {
+            worker.getOutputStream().write('\n');
+            worker.getOutputStream().close();
+        }
+
+        long firstStart = Long.MAX_VALUE;
+        long lastEnd = Long.MIN_VALUE;
+        for (int i = 0; i < workers.size(); i++) {
+            Process worker = workers.get(i);
+            String result = null;
+            try (BufferedReader output = outputs.get(i)) {
+                String line;
+                while ((line = output.readLine()) != null) {
+                    if (line.startsWith(workerResultPrefix)) {
+                        result = line;
+                    } else {
+                        System.out.println("[ Stress ] worker: " + line);
+                    }
+                }
+            }
+            try {
+                if (worker.waitFor() != 0 || result == null) {
+                    throw new IOException("A stress worker failed with exit status " + worker.exitValue());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the stress workers", e);
+            }
+            String[] times = result.substring(workerResultPrefix.length()).split(" ");
+            firstStart = Math.min(firstStart, Long.parseLong(times[0]));
+            lastEnd = Math.max(lastEnd, Long.parseLong(times[1]));
+        }
+        return (double) processCount * threadCount * recordsPerThread / Math.max(1, lastEnd - firstStart) * 1e9;
+    }
+
+    /**
+     * Worker process: append records from several threads to taxreport.txt in the working directory and print the
+     * time the threads started and finished writing (System.nanoTime is not comparable between processes, so the
+     * times are epoch nanoseconds built from currentTimeMillis and nanoTime).
+     *
+     * @param args String[] threads, records per thread, batch size, number of the first writer.
+     * @return int exit status for the process, 0 means success.
+     */
+    public static int runWorker(String[] args) {
+        final int threadCount = Integer.parseInt(args[1]);
+        final int recordsPerThread = Integer.parseInt(args[2]);
+        final int batchSize = Integer.parseInt(args[3]);
+        final int firstWriter = Integer.parseInt(args[4]);
+        final long clockOffset = System.currentTimeMillis() * 1000000L - System.nanoTime();
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final boolean[] failed = new boolean[1];
+        final CountDownLatch warmedUp = new CountDownLatch(threadCount);
+
+        List<Thread> writerThreads = new ArrayList<>();
+        for (int thread = 0; thread < threadCount; thread++) {
+            final int writer = firstWriter + thread;
+            Thread writerThread = new Thread(() -> {
+                long[] employeeIds = new long[batchSize];
+                double[] employeeIncomes = new double[batchSize];
+                double[] totalTaxes = new double[batchSize];
+                if (!warmUp(writer, employeeIds, employeeIncomes, totalTaxes)) {
+                    failed[0] = true;
+                }
+                warmedUp.countDown();
+                try {
+                    startSignal.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int sequence = 0; sequence < recordsPerThread; ) {
+                    int count = Math.min(batchSize, recordsPerThread - sequence);
+                    for (int i = 0; i < count; i++) {
+                        employeeIds[i] = (writer + 1) * writerIdSpacing + sequence + i;
+                        employeeIncomes[i] = sequence + i;
+                        totalTaxes[i] = writer;
+                    }
+                    if (!TaxReportFileManager.writeTaxReportEntries(employeeIds, employeeIncomes, totalTaxes, count)) {
+                        failed[0] = true;
+                        return;
+                    }
+                    sequence += count;
+                }
+            });
+            writerThreads.add(writerThread);
+            writerThread.start();
+        }
+
+        try {
+            warmedUp.await();
+        } catch (InterruptedException e) {
+            return 1;
+        }
+        System.out.println(workerReadyLine);
+        System.out.flush();
+        try {
+            //The test writes a line once every worker is ready.
+            System.in.read();
+        } catch (IOException e) {
+            return 1;
+        }
+        long start = System.nanoTime();
+        startSignal.countDown();
+        for (Thread writerThread : writerThreads) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                return 1;
+            }
+        }
+        long end = System.nanoTime();
+        System.out.println(workerResultPrefix + (clockOffset + start) + " " + (clockOffset + end));
+        return failed[0] ? 1 : 0;
+    }
+
+    /**
+     * Append records through the same path as the measured writes, to a file of this writer's own that is deleted
+     * afterwards, so the JIT has compiled the append path before the measured writes start. Otherwise every worker
+     * process compiles it while the others write, which on a machine with fewer cores than workers costs the
+     * concurrent run far more than the single writer and is not what the test measures.
+     */
+    private static boolean warmUp(int writer, long[] employeeIds, double[] employeeIncomes, double[] totalTaxes) {
+        File warmUpFile = new File("warmup-" + writer + ".txt");
+        int batchSize = employeeIds.length;
+        try {
+            for (int sequence = 0; sequence < warmUpRecords; sequence += batchSize) {
+                for (int i = 0; i < batchSize; i++) {
+                    employeeIds[i] = writerIdSpacing + sequence + i;
+                    employeeIncomes[i] = sequence + i;
+                }
+                if (!TaxReportFileManager.writeTaxReportEntries(warmUpFile.getPath(), employeeIds, employeeIncomes,
+                        totalTaxes, batchSize)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            warmUpFile.delete();
+            new File(warmUpFile.getPath() + TaxReportFileManager.lockFileSuffix).delete();
+        }
+    }
+
+    /**
+     * Read the file written by the concurrent workers and list everything wrong with it.
+     */
+    private List<String> checkFile(File taxReportFile, int writers) throws IOException {
+        List<String> problems = new ArrayList<>();
+        long[] nextSequence = new long[writers];
+        int headings = 0;
+        try (ReportLineReader lineReader = new ReportLineReader(new FileInputStream(taxReportFile))) {
+            while (lineReader.nextLine() && problems.size() < 20) {
+                if (lineReader.isBlank()) {
+                    problems.add("Blank line " + lineReader.getLineNumber());
+                    continue;
+                }
+                if (lineReader.atLetter()) {
+                    headings++;
+                    if (lineReader.getLineNumber() != 1) {
+                        problems.add("Heading written again at line " + lineReader.getLineNumber());
+                    }
+                    continue;
+                }
+                TaxReportEntry entry;
+                try {
+                    entry = TaxReportFileManager.parseTaxReportLine(lineReader);
+                } catch (IOException tornLine) {
+                    problems.add(tornLine.getMessage());
+                    continue;
+                }
+                int writer = (int) (entry.getEmployeeId() / writerIdSpacing) - 1;
+                long sequence = entry.getEmployeeId() % writerIdSpacing;
+                if (writer < 0 || writer >= writers || entry.getTax() != writer || entry.getEmployeeIncome() != sequence) {
+                    problems.add("Mixed up record at line " + lineReader.getLineNumber() + ": " + lineReader.currentLine());
+                } else if (sequence != nextSequence[writer]) {
+                    problems.add("Writer " + writer + " record " + sequence + " at line " + lineReader.getLineNumber()
+                            + " but record " + nextSequence[writer] + " was expected next");
+                    nextSequence[writer] = sequence + 1;
+                } else {
+                    nextSequence[writer]++;
+                }
+            }
+        }
+        if (headings != 1) {
+            problems.add("The heading was written " + headings + " times");
+        }
+        for (int writer = 0; writer < writers; writer++) {
+            if (nextSequence[writer] != records) {
+                problems.add("Writer " + writer + " has " + nextSequence[writer] + " of its " + records + " records");
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * Delete a temporary directory and everything in it.
+     *
+     * @param directory File the directory to delete.
+     */
+    static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+
+/**
+ * TaxReportTransfer is in charge of moving records in and out of the system in formats other programs can read.
+ * Export streams the taxreport.txt records out as CSV or JSON Lines, import reads employee ids and incomes from CSV or
+ * JSON Lines, calculates the tax in batches and appends the results to taxreport.txt.
+ * Both directions work through large reusable byte buffers (ReportLineReader and ReportOutputBuffer) so memory use
+ * stays the same no matter how big the files are.
+ */
+public class TaxReportTransfer {
+
+    //Supported export formats
+    public static final String csvFormat = "csv";
+    public static final String jsonLinesFormat = "jsonl";
+    //Number of imported records that are calculated and written to taxreport.txt together.
+    public static final int importBatchSize = 65536;
+    //Fewest digits of an imported employee id, the same as typing one in (TaxSystemUI.promptForID), so "12" is not
+    //taken for employee 0012.
+    private static final int minimumIdDigits = 4;
+
+    //Pre-encoded pieces of the JSON Lines records
+    private static final byte[] jsonEmployeeId = "{\"employeeId\":\"".getBytes();
+    private static final byte[] jsonEmployeeIncome = "\",\"employeeIncome\":".getBytes();
+    private static final byte[] jsonTax = ",\"tax\":".getBytes();
+    private static final byte[] jsonTimestamp = ",\"timestamp\":".getBytes();
+    private static final byte[] jsonEnd = "}\n".getBytes();
+
+    /**
+     * Export every record of a tax report file as CSV or JSON Lines. The employee id is written with its leading zeros
+     * (as a string in JSON) and the amounts with two decimal places, the same as in the tax report file. The timestamp
+     * is in epoch milliseconds, left empty in CSV and left out in JSON for records written before timestamps.
+     * Records sealed into segments by TaxReportArchive are exported first, in the order they were written.
+     *
+     * @param taxReportPathName String path to the tax report file to export.
+     * @param outputPathName    String path to the file to create (it is overwritten if it exists).
+     * @param format            String either "csv" or "jsonl".
+     * @return long the number of records exported.
+     * @throws IOException error thrown if either file can not be read or written, or the tax report file is invalid.
+     */
+    public static long exportTaxReport(String taxReportPathName, String outputPathName, String format) throws IOException {
+        final boolean csv = csvFormat.equalsIgnoreCase(format);
+        if (!csv && !jsonLinesFormat.equalsIgnoreCase(format)) {
+            throw new IllegalArgumentException("Unknown export format: " + format + " (expected csv or jsonl)");
+        }
+
+        try (final ReportOutputBuffer outputBuffer = new ReportOutputBuffer(new FileOutputStream(new File(outputPathName).getAbsolutePath()))) {
+            if (csv) {
+                outputBuffer.writeText("employeeId,employeeIncome,tax,timestamp\n");
+            }
+            long exported = TaxReportArchive.streamAllTaxReportEntries(taxReportPathName, (lineNumber, entry) -> {
+                if (csv) {
+                    outputBuffer.writeNumber(entry.getEmployeeId(), 4);
+                    outputBuffer.writeChar(',');
+                    outputBuffer.writeAmount(entry.getEmployeeIncome());
+                    outputBuffer.writeChar(',');
+                    outputBuffer.writeAmount(entry.getTax());
+                    outputBuffer.writeChar(',');
+                    if (entry.getTimestamp() != TaxReportFileManager.noTimestamp) {
+                        outputBuffer.writeNumber(entry.getTimestamp(), 1);
+                    }
+                    outputBuffer.writeChar('\n');
+                } else {
+                    outputBuffer.writeBytes(jsonEmployeeId);
+                    outputBuffer.writeNumber(entry.getEmployeeId(), 4);
+                    outputBuffer.writeBytes(jsonEmployeeIncome);
+                    outputBuffer.writeAmount(entry.getEmployeeIncome());
+                    outputBuffer.writeBytes(jsonTax);
+                    outputBuffer.writeAmount(entry.getTax());
+                    if (entry.getTimestamp() != TaxReportFileManager.noTimestamp) {
+                        outputBuffer.writeBytes(jsonTimestamp);
+                        outputBuffer.writeNumber(entry.getTimestamp(), 1);
+                    }
+                    outputBuffer.writeBytes(jsonEnd);
+                }
+            });
+            outputBuffer.flush();
+            return exported;
+        }
+    }
+
+    /**
+     * Import employee ids and incomes from a CSV or JSON Lines file, calculate the tax for each with the batch
+     * calculation path and append the records to taxreport.txt.
+     * CSV lines are "employeeId,employeeIncome" (any further columns are ignored, a heading line is skipped, quoted or
+     * not). JSON Lines records need the "employeeId" and "employeeIncome" keys. Both formats may be mixed in one file.
+     * As when they are typed in, employee ids must have 4 to 18 digits and incomes can not have a sign.
+     * The whole file is checked before any record is written, so an invalid line leaves taxreport.txt as it was and the
+     * import can be run again once the line is fixed. Records are then written in batches of importBatchSize.
+     *
+     * @param inputPathName String path to the CSV or JSON Lines file to import.
+     * @param taxRates      LinkedHashSet<TaxRate> the tax rates to calculate with.
+     * @return long the number of records imported.
+     * @throws IOException error thrown if the file can not be read, a line is invalid, or taxreport.txt can not be written.
+     */
+    public static long importIncomes(String inputPathName, final LinkedHashSet<TaxRate> taxRates) throws IOException {
+        //First pass: only parse, so an invalid line is found before anything is written.
+        readIncomeRecords(inputPathName, (employeeId, employeeIncome) -> {
+        });
+
+        final long[] employeeIds = new long[importBatchSize];
+        final double[] employeeIncomes = new double[importBatchSize];
+        final double[] totalTaxes = new double[importBatchSize];
+        //Records read but not yet written, and records written so far.
+        final long[] counts = new long[2];
+
+        readIncomeRecords(inputPathName, (employeeId, employeeIncome) -> {
+            int batchCount = (int) counts[0];
+            employeeIds[batchCount] = employeeId;
+            employeeIncomes[batchCount] = employeeIncome;
+            counts[0]++;
+
+            if (counts[0] == importBatchSize) {
+                counts[1] += writeBatch(taxRates, employeeIds, employeeIncomes, totalTaxes, importBatchSize);
+                counts[0] = 0;
+            }
+        });
+        //The last part batch is only written once the whole file has been read.
+        if (counts[0] > 0) {
+            counts[1] += writeBatch(taxRates, employeeIds, employeeIncomes, totalTaxes, (int) counts[0]);
+        }
+        return counts[1];
+    }
+
+    /**
+     * Read employee ids and incomes from a CSV or JSON Lines file (in the formats described for importIncomes) and hand
+     * each record to the handler in file order.
+     *
+     * @param inputPathName String path to the CSV or JSON Lines file.
+     * @param handler       IncomeRecordHandler called for each record.
+     * @return long the number of records read.
+     * @throws IOException error thrown if the file can not be read, a line is invalid, or the handler fails.
+     */
+    public static long readIncomeRecords(String inputPathName, IncomeRecordHandler handler) throws IOException {
+        long records = 0;
+        try (ReportLineReader lineReader = new ReportLineReader(new FileInputStream(new File(inputPathName).getAbsolutePath()))) {
+            while (lineReader.nextLine()) {
+                if (lineReader.isBlank()) {
+                    continue;
+                }
+                boolean jsonRecord = lineReader.peek() == '{';
+                if (!jsonRecord) {
+                    //The first column may be quoted, in a heading as well as in a record
+                    skipQuote(lineReader);
+                    if (lineReader.atLetter()) {
+                        //CSV heading line
+                        continue;
+                    }
+                }
+
+                long employeeId;
+                double employeeIncome;
+                try {
+                    if (jsonRecord) {
+                        //JSON Lines record
+                        if (!lineReader.seekJsonKey("employeeId")) {
+                            throw new NumberFormatException("Missing \"employeeId\"");
+                        }
+                        employeeId = lineReader.parseLong(minimumIdDigits);
+                        if (!lineReader.seekJsonKey("employeeIncome")) {
+                            throw new NumberFormatException("Missing \"employeeIncome\"");
+                        }
+                    } else {
+                        //CSV record, the id may be quoted to keep its leading zeros in spreadsheets (the quote was skipped above)
+                        employeeId = lineReader.parseLong(minimumIdDigits);
+                        if (!lineReader.skipPast(',')) {
+                            throw new NumberFormatException("Missing income column");
+                        }
+                        lineReader.skipWhitespace();
+                        skipQuote(lineReader);
+                    }
+                    //"-0" parses as an income of -0.0, so the sign itself is refused
+                    if (lineReader.peek() == '-') {
+                        throw new NumberFormatException("Income can not be negative");
+                    }
+                    employeeIncome = lineReader.parseAmount();
+                } catch (NumberFormatException invalidLine) {
+                    throw new IOException("Invalid record at line " + lineReader.getLineNumber() + " ("
+                            + invalidLine.getMessage() + "): " + lineReader.currentLine(), invalidLine);
+                }
+
+                handler.handle(employeeId, employeeIncome);
+                records++;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Calculate the tax for a batch of imported records and append them to taxreport.txt.
+     */
+    private static int writeBatch(LinkedHashSet<TaxRate> taxRates, long[] employeeIds, double[] employeeIncomes,
+                                  double[] totalTaxes, int count) throws IOException {
+        TaxCalculator.calculateTaxBatch(taxRates, employeeIncomes, totalTaxes, count);
+        if (!TaxReportFileManager.writeTaxReportEntries(employeeIds, employeeIncomes, totalTaxes, count)) {
+            throw new IOException("The records could not be written to " + TaxReportFileManager.taxReportFileName);
+        }
+        return count;
+    }
+
+    /**
+     * Skip an opening double quote at the cursor if there is one.
+     */
+    private static void skipQuote(ReportLineReader lineReader) {
+        if (lineReader.peek() == '"') {
+            lineReader.skipPast('"');
+        }
+    }
+}
@@ -0,0 +1,315 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * TaxReportVerifier checks every record stored in a tax report file against the current tax rates. The tax of each
+ * record is recalculated from its income and any record whose stored tax differs by more than the tolerance is
+ * reported with its line number, so it can be run as a nightly check of taxreport.txt.
+ * The file is split into byte ranges that are read and checked in parallel on every core, each range streams its
+ * lines through its own ReportLineReader and its mismatches through a temporary file, so memory use does not depend on
+ * the size of the file or on the number of mismatches. A last line without a line terminator may be a record still
+ * being written and is not checked.
+ * Records sealed into segments by TaxReportArchive are checked first, the segments being decompressed in parallel, and
+ * their mismatches are reported by segment and record number.
+ */
+public class TaxReportVerifier {
+
+    //Default largest accepted difference between the stored and the recalculated tax, in dollars.
+    public static final double defaultTolerance = 0.01;
+    //Smallest byte range worth giving to its own task.
+    private static final long minimumRangeSize = 1 << 20;
+
+    /**
+     * Verify every record of a tax report file, writing one line per mismatch (in file order) and a summary to the output.
+     *
+     * @param taxReportPathName String path to the tax report file to verify.
+     * @param taxRates          LinkedHashSet<TaxRate> the tax rates to recalculate with.
+     * @param tolerance         double largest accepted difference in dollars.
+     * @param output            OutputStream where the mismatches and summary are written (it is flushed, not closed).
+     * @return long the number of mismatching or invalid records, 0 if the whole file is correct.
+     * @throws IOException error thrown if the file can not be read.
+     */
+    public static long verifyTaxReport(String taxReportPathName, LinkedHashSet<TaxRate> taxRates, double tolerance,
+                                       OutputStream output) throws IOException {
+        long startTime = System.nanoTime();
+        File taxReportFile = new File(taxReportPathName);
+        if (!taxReportFile.isFile()) {
+            throw new FileNotFoundException(taxReportFile.getAbsolutePath() + " was not found.");
+        }
+        String absolutePath = taxReportFile.getAbsolutePath();
+        long fileLength = taxReportFile.length();
+        final TaxRate[] taxRateArray = taxRates.toArray(new TaxRate[0]);
+        final ReportOutputBuffer outputBuffer = new ReportOutputBuffer(output, 1 << 16);
+
+        //Sealed records, checked as each segment is handed on in order.
+        final long[] segmentTotals = new long[2];
+        final double[] segmentLargestDifference = new double[1];
+        TaxReportArchive.scanSegments(TaxReportArchive.listSegments(absolutePath), segmentRecords -> {
+            for (int i = 0; i < segmentRecords.count; i++) {
+                double income = segmentRecords.employeeIncomes[i];
+                TaxRate taxRate = TaxCalculator.findTaxRate(taxRateArray, income);
+                double expectedTax = taxRate == null ? 0.0 : TaxCalculator.taxForBracket(taxRate, income);
+                double difference = Math.abs(segmentRecords.taxes[i] - expectedTax);
+                if (difference > tolerance) {
+                    outputBuffer.writeText("Segment " + segmentRecords.segment.file.getName() + " record ");
+                    outputBuffer.writeNumber(i + 1, 1);
+                    VerificationRange.writeMismatch(outputBuffer, segmentRecords.employeeIds[i], income,
+                            segmentRecords.taxes[i], expectedTax);
+                    segmentTotals[1]++;
+                    segmentLargestDifference[0] = Math.max(segmentLargestDifference[0], difference);
+                }
+            }
+            segmentTotals[0] += segmentRecords.count;
+        });
+
+        //Split the file into about four ranges per core so a slow range does not hold up the others.
+        int threads = Runtime.getRuntime().availableProcessors();
+        long rangeCount = Math.max(1, Math.min(threads * 4L, fileLength / minimumRangeSize));
+        long rangeSize = (fileLength + rangeCount - 1) / rangeCount;
+
+        List<VerificationRange> ranges = new ArrayList<>();
+        for (long start = 0; start < fileLength || ranges.isEmpty(); start += rangeSize) {
+            ranges.add(new VerificationRange(absolutePath, start, Math.min(fileLength, start + rangeSize), taxRateArray, tolerance));
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.min(threads, ranges.size()));
+        boolean verified = false;
+        try {
+            List<Future<VerificationRange>> futures = new ArrayList<>();
+            for (VerificationRange range : ranges) {
+                futures.add(executorService.submit(range));
+            }
+            for (Future<VerificationRange> future : futures) {
+                future.get();
+            }
+            verified = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Verification was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Verification failed", e.getCause());
+        } finally {
+            executorService.shutdownNow();
+            if (!verified) {
+                for (VerificationRange range : ranges) {
+                    range.deleteMismatches();
+                }
+            }
+        }
+
+        //Write the ranges out in file order, turning their local line numbers into line numbers of the whole file.
+        long linesBefore = 0;
+        long records = segmentTotals[0];
+        long mismatches = segmentTotals[1];
+        double largestDifference = segmentLargestDifference[0];
+        try {
+            for (VerificationRange range : ranges) {
+                range.writeMismatches(outputBuffer, linesBefore);
+                linesBefore += range.lineCount;
+                records += range.recordCount;
+                mismatches += range.mismatchCount;
+                largestDifference = Math.max(largestDifference, range.largestDifference);
+            }
+        } finally {
+            for (VerificationRange range : ranges) {
+                range.deleteMismatches();
+            }
+        }
+        outputBuffer.writeText(String.format("[ Verify ] %d records checked, %d mismatches (tolerance $%.2f), largest difference $%.2f, in %.3f seconds%n",
+                records, mismatches, tolerance, largestDifference, (System.nanoTime() - startTime) / 1e9));
+        outputBuffer.flush();
+        return mismatches;
+    }
+}
+
+/**
+ * One byte range of the file checked by TaxReportVerifier. A line belongs to the range its first byte is in, so every
+ * line is checked by exactly one range. Mismatches are written to a temporary file, with line numbers counted from the
+ * first line of the range, until the ranges before it have been counted and the line numbers in the whole file are
+ * known.
+ */
+class VerificationRange implements Callable<VerificationRange> {
+
+    //Size of the read buffer of each range.
+    private static final int rangeBufferSize = 1 << 18;
+    //Size of the buffer the mismatches are written and read back through.
+    private static final int mismatchBufferSize = 1 << 16;
+    //Kinds of entry in the mismatch file: a record whose tax differs, and a line that is not a valid record.
+    private static final byte taxMismatch = 0;
+    private static final byte invalidLine = 1;
+
+    private final String pathName;
+    private final long start;
+    private final long end;
+    private final TaxRate[] taxRates;
+    private final double tolerance;
+
+    long lineCount = 0;
+    long recordCount = 0;
+    long mismatchCount = 0;
+    double largestDifference = 0;
+
+    //Mismatches found in this range, created on the first one.
+    private Path mismatchPath = null;
+    private DataOutputStream mismatchOutput = null;
+
+    VerificationRange(String pathName, long start, long end, TaxRate[] taxRates, double tolerance) {
+        this.pathName = pathName;
+        this.start = start;
+        this.end = end;
+        this.taxRates = taxRates;
+        this.tolerance = tolerance;
+    }
+
+    @Override
+    public VerificationRange call() throws IOException {
+        //Start one byte early and drop the first line read: that line started in the range before.
+        long readFrom = start == 0 ? 0 : start - 1;
+        FileInputStream fileInputStream = new FileInputStream(pathName);
+        fileInputStream.getChannel().position(readFrom);
+        try (ReportLineReader lineReader = new ReportLineReader(fileInputStream, rangeBufferSize)) {
+            if (start > 0 && !lineReader.nextLine()) {
+                return this;
+            }
+            while (lineReader.nextLine() && lineReader.isLineTerminated() && readFrom + lineReader.getLineOffset() < end) {
+                lineCount++;
+                TaxReportEntry entry;
+                try {
+                    entry = TaxReportFileManager.parseTaxReportLine(lineReader);
+                } catch (IOException invalidRecord) {
+                    byte[] text = lineReader.currentLine().getBytes(StandardCharsets.UTF_8);
+                    DataOutputStream output = mismatchOutput();
+                    output.writeByte(invalidLine);
+                    output.writeLong(lineCount);
+                    output.writeInt(text.length);
+                    output.write(text);
+                    mismatchCount++;
+                    continue;
+                }
+                if (entry == null) {
+                    continue;
+                }
+                recordCount++;
+
+                TaxRate taxRate = TaxCalculator.findTaxRate(taxRates, entry.getEmployeeIncome());
+                double expectedTax = taxRate == null ? 0.0 : TaxCalculator.taxForBracket(taxRate, entry.getEmployeeIncome());
+                double difference = Math.abs(entry.getTax() - expectedTax);
+                if (difference > tolerance) {
+                    DataOutputStream output = mismatchOutput();
+                    output.writeByte(taxMismatch);
+                    output.writeLong(lineCount);
+                    output.writeLong(entry.getEmployeeId());
+                    output.writeDouble(entry.getEmployeeIncome());
+                    output.writeDouble(entry.getTax());
+                    output.writeDouble(expectedTax);
+                    mismatchCount++;
+                    largestDifference = Math.max(largestDifference, difference);
+                }
+            }
+        } finally {
+            if (mismatchOutput != null) {
+                mismatchOutput.close();
+            }
+        }
+        return this;
+    }
+
+    private DataOutputStream mismatchOutput() throws IOException {
+        if (mismatchOutput == null) {
+            mismatchPath = Files.createTempFile("taxreport-verify", ".tmp");
+            mismatchOutput = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(mismatchPath), mismatchBufferSize));
+        }
+        return mismatchOutput;
+    }
+
+    /**
+     * Write the mismatches of this range in line order.
+     *
+     * @param outputBuffer ReportOutputBuffer where the lines are written.
+     * @param linesBefore  long the number of lines of the file before this range.
+     */
+    void writeMismatches(ReportOutputBuffer outputBuffer, long linesBefore) throws IOException {
+        if (mismatchPath == null) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(mismatchPath), mismatchBufferSize))) {
+            for (long i = 0; i < mismatchCount; i++) {
+                byte kind = input.readByte();
+                long localLine = input.readLong();
+                if (kind == invalidLine) {
+                    byte[] text = new byte[input.readInt()];
+                    input.readFully(text);
+                    outputBuffer.writeText("Line " + (linesBefore + localLine) + ": not a valid record: "
+                            + new String(text, StandardCharsets.UTF_8) + "\n");
+                    continue;
+                }
+                long employeeId = input.readLong();
+                double income = input.readDouble();
+                double storedTax = input.readDouble();
+                double expectedTax = input.readDouble();
+                outputBuffer.writeText("Line ");
+                outputBuffer.writeNumber(linesBefore + localLine, 1);
+                writeMismatch(outputBuffer, employeeId, income, storedTax, expectedTax);
+            }
+        }
+    }
+
+    /**
+     * Delete the temporary file of the mismatches of this range, if it has one.
+     */
+    void deleteMismatches() {
+        if (mismatchPath == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(mismatchPath);
+        } catch (IOException e) {
+            System.out.println("[ Verify ] Issue : Could not delete " + mismatchPath + ": " + e.getMessage());
+        }
+        mismatchPath = null;
+    }
+    /**
+     * Write the rest of a mismatch line after its position: the employee, the income and the stored and expected tax.
+     *
+     * @param outputBuffer ReportOutputBuffer where the line is written.
+     * @param employeeId   long the employee id of the record.
+     * @param income       double the income of the record.
+     * @param storedTax    double the tax stored in the record.
+     * @param expectedTax  double the tax recalculated from the income.
+     */
+    static void writeMismatch(ReportOutputBuffer outputBuffer, long employeeId, double income, double storedTax,
+                              double expectedTax) throws IOException {
+        outputBuffer.writeText(": Employee ID ");
+        outputBuffer.writeNumber(employeeId, 4);
+        outputBuffer.writeText(" income ");
+        outputBuffer.writeAmount(income);
+        outputBuffer.writeText(" stored tax ");
+        outputBuffer.writeAmount(storedTax);
+        outputBuffer.writeText(" expected ");
+        outputBuffer.writeAmount(expectedTax);
+        outputBuffer.writeText(" difference ");
+        outputBuffer.writeAmount(storedTax - expectedTax);
+        outputBuffer.writeChar('\n');
+    }
+}
@@ -159,22 +159,23 @@ public class TaxSystemUI {
     }
 
     /**
-     * UI method to display simple prompt for employee ID and validate input to match 4 digit number. Created static and separately as it is used by multiple Classes.
+     * UI method to display simple prompt for employee ID and validate input to match a number of 4 to 18 digits (legacy
+     * ids have 4 digits, the longest accepted still fits in a long). Created static and separately as it is used by multiple Classes.
      *
-     * @param prompt String prompt wording to display to the user for requesting the 4 digit number.
-     * @return int expected returned is 4 digit code.
+     * @param prompt String prompt wording to display to the user for requesting the employee id.
+     * @return long expected returned is the employee id.
      */
-    public static int promptForID(String prompt) {
+    public static long promptForID(String prompt) {
         Scanner scanner = new Scanner(System.in);
 
         while (true) {
             System.out.println(prompt);
             System.out.print("--> ");
             try {
-                String employeeId = scanner.next("(\\s?)\\d{4}(\\s?)");
-                return Integer.valueOf(employeeId);
+                String employeeId = scanner.next("(\\s?)\\d{4,18}(\\s?)");
+                return Long.valueOf(employeeId.trim());
             } catch (InputMismatchException formatMismatch) {
-                System.out.println("[ Invalid Input ] : The id provided was invalid. Please make sure it is a 4 digit integer.");
+                System.out.println("[ Invalid Input ] : The id provided was invalid. Please make sure it is an integer of 4 to 18 digits.");
             }
             scanner.nextLine();
         }
@@ -184,10 +185,10 @@ public class TaxSystemUI {
      * UI method to display simple prompt for the user to enter 4 digit employee id using a regex to validate input and
      * cleaning up the string to parse and return a double
      *
-     * @param employeeIDToMentionInPrompt int value to be shown to the user as the employee id for which the income is required for.
+     * @param employeeIDToMentionInPrompt long value to be shown to the user as the employee id for which the income is required for.
      * @return double value of the dollar value of the income that the user has provided.
      */
-    public static double promptForIncome(int employeeIDToMentionInPrompt) {
+    public static double promptForIncome(long employeeIDToMentionInPrompt) {
         Scanner scanner = new Scanner(System.in);
 
         while (true) {
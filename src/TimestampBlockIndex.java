@@ -0,0 +1,294 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * TimestampBlockIndex is a sparse index over the timestamps of a tax report file. The records are grouped in blocks of
+ * recordsPerBlock lines and for each block only its byte offset, record count and lowest and highest timestamp are
+ * kept, so a time range query reads just the blocks that can hold matching records instead of the whole file.
+ * Keeping the lowest and highest timestamp (rather than only the first) keeps queries correct when records from
+ * several writers are appended slightly out of time order. Records without a timestamp count as time 0.
+ *
+ * The index is saved next to the tax report file (taxreport.txt.tsidx). When opened, the last block and whatever was
+ * appended after it are read again, so the index always covers the whole file. It is only saved again once the part
+ * read again is long compared with the part already saved (the same rule as TaxReportIndex), so readers opening a
+ * growing file do not rewrite the saved index every time. A last line without a line terminator may be a record still
+ * being written, it is left out of the blocks until it is complete.
+ */
+public class TimestampBlockIndex {
+
+    //Suffix added to the tax report file name for its saved index.
+    public static final String indexFileSuffix = ".tsidx";
+    //Number of records summarised by each block.
+    public static final int recordsPerBlock = 1024;
+    //"TAXTSX01"
+    private static final long magic = 0x5441585453583031L;
+
+    private final String taxReportPathName;
+    private long[] offsets = new long[64];
+    private long[] minTimestamps = new long[64];
+    private long[] maxTimestamps = new long[64];
+    private int[] recordCounts = new int[64];
+    private int blockCount = 0;
+    //Number of bytes of the tax report file covered by the blocks.
+    private long sourceLength = 0;
+
+    private TimestampBlockIndex(String taxReportPathName) {
+        this.taxReportPathName = taxReportPathName;
+    }
+
+    /**
+     * Open the timestamp index of a tax report file, loading the saved index, bringing it up to date with the records
+     * appended since, and saving it again if anything changed.
+     *
+     * @param taxReportPathName String path to the tax report file.
+     * @return TimestampBlockIndex covering the whole file.
+     * @throws IOException error thrown if the tax report file can not be found or read, or a line is not a valid record.
+     */
+    public static TimestampBlockIndex open(String taxReportPathName) throws IOException {
+        File taxReportFile = new File(taxReportPathName);
+        if (!taxReportFile.isFile()) {
+            throw new FileNotFoundException(taxReportFile.getAbsolutePath() + " was not found.");
+        }
+        String indexPathName = taxReportFile.getAbsolutePath() + indexFileSuffix;
+        //Records of an interrupted seal must be cut from the file before it is indexed.
+        TaxReportArchive.finishInterruptedSeal(taxReportPathName);
+        TimestampBlockIndex index = new TimestampBlockIndex(taxReportPathName);
+        try {
+            if (new File(indexPathName).isFile()) {
+                index.load(indexPathName);
+            }
+        } catch (IOException damagedIndex) {
+            index.clear();
+        }
+        if (!TaxReportIndex.isLineStart(taxReportFile, index.sourceLength)) {
+            //The report file was replaced or cut short since the index was saved.
+            index.clear();
+        }
+        long savedLength = index.sourceLength;
+        if (index.sourceLength < taxReportFile.length()) {
+            try {
+                index.extend();
+            } catch (IOException invalidTail) {
+                if (savedLength == 0) {
+                    throw invalidTail;
+                }
+                //The saved blocks do not end where a record of this file starts, read the whole file again.
+                index.clear();
+                savedLength = 0;
+                index.extend();
+            }
+            if (savedLength == 0
+                    || TaxReportIndex.isTailTooLong(savedLength, index.sourceLength, new File(indexPathName).length())) {
+                try {
+                    index.save(indexPathName);
+                } catch (IOException notSaved) {
+                    //The index still works from memory, it will just be brought up to date again next time.
+                    System.out.println("[ Tax Reports ] Issue : The timestamp index could not be saved to " + indexPathName);
+                }
+            }
+        }
+        return index;
+    }
+
+    private void clear() {
+        blockCount = 0;
+        sourceLength = 0;
+    }
+
+    /**
+     * Read the records after the last full block and add them to the blocks, up to the last line terminator of the
+     * file so a block only ever counts complete records.
+     */
+    private void extend() throws IOException {
+        //A last block that is not full is read again so the new records join it.
+        if (blockCount > 0 && recordCounts[blockCount - 1] < recordsPerBlock) {
+            blockCount--;
+            sourceLength = offsets[blockCount];
+        }
+        long fromOffset = sourceLength;
+        FileInputStream fileInputStream = new FileInputStream(new File(taxReportPathName).getAbsolutePath());
+        fileInputStream.getChannel().position(fromOffset);
+        try (ReportLineReader lineReader = new ReportLineReader(fileInputStream)) {
+            while (lineReader.nextLine() && lineReader.isLineTerminated()) {
+                TaxReportEntry taxReportEntry = TaxReportFileManager.parseTaxReportLine(lineReader);
+                if (taxReportEntry != null) {
+                    addRecord(fromOffset + lineReader.getLineOffset(), taxReportEntry.getTimestamp());
+                }
+                sourceLength = fromOffset + lineReader.getNextLineOffset();
+            }
+        }
+    }
+
+    private void addRecord(long offset, long timestamp) {
+        if (blockCount == 0 || recordCounts[blockCount - 1] == recordsPerBlock) {
+            addBlock(offset, timestamp, timestamp, 0);
+        }
+        int block = blockCount - 1;
+        minTimestamps[block] = Math.min(minTimestamps[block], timestamp);
+        maxTimestamps[block] = Math.max(maxTimestamps[block], timestamp);
+        recordCounts[block]++;
+    }
+
+    private void addBlock(long offset, long minTimestamp, long maxTimestamp, int records) {
+        if (blockCount == offsets.length) {
+            int capacity = blockCount * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            minTimestamps = Arrays.copyOf(minTimestamps, capacity);
+            maxTimestamps = Arrays.copyOf(maxTimestamps, capacity);
+            recordCounts = Arrays.copyOf(recordCounts, capacity);
+        }
+        offsets[blockCount] = offset;
+        minTimestamps[blockCount] = minTimestamp;
+        maxTimestamps[blockCount] = maxTimestamp;
+        recordCounts[blockCount] = records;
+        blockCount++;
+    }
+
+    private void load(String indexPathName) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexPathName)))) {
+            if (input.readLong() != magic || input.readInt() != recordsPerBlock) {
+                throw new IOException(indexPathName + " is not a timestamp index file for this block size");
+            }
+            int count = input.readInt();
+            long length = input.readLong();
+            clear();
+            for (int i = 0; i < count; i++) {
+                addBlock(input.readLong(), input.readLong(), input.readLong(), input.readInt());
+            }
+            sourceLength = length;
+        }
+    }
+
+    /**
+     * Write the index under a temporary name of its own and rename it over the saved index, so readers never see half
+     * of it and two processes saving at once never write the same temporary file.
+     */
+    private void save(String indexPathName) throws IOException {
+        File indexFile = new File(indexPathName).getAbsoluteFile();
+        Path temporaryPath = Files.createTempFile(indexFile.getParentFile().toPath(), indexFile.getName(), ".tmp");
+        boolean saved = false;
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryPath)))) {
+                output.writeLong(magic);
+                output.writeInt(recordsPerBlock);
+                output.writeInt(blockCount);
+                output.writeLong(sourceLength);
+                for (int i = 0; i < blockCount; i++) {
+                    output.writeLong(offsets[i]);
+                    output.writeLong(minTimestamps[i]);
+                    output.writeLong(maxTimestamps[i]);
+                    output.writeInt(recordCounts[i]);
+                }
+            }
+            Files.move(temporaryPath, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            saved = true;
+        } finally {
+            if (!saved) {
+                Files.deleteIfExists(temporaryPath);
+            }
+        }
+    }
+
+    /**
+     * Get the number of blocks in the index.
+     *
+     * @return int the number of blocks.
+     */
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * Hand every record with a timestamp from fromTimestamp to toTimestamp (both included) to the handler, in file
+     * order. Only the blocks whose timestamps overlap the range are read.
+     *
+     * @param fromTimestamp long start of the range in epoch milliseconds.
+     * @param toTimestamp   long end of the range in epoch milliseconds.
+     * @param handler       TaxReportEntryHandler called for each matching record (the line number is not known and is 0).
+     * @return long the number of matching records.
+     * @throws IOException error thrown if the tax report file can not be read.
+     */
+    public long findRecordsBetween(long fromTimestamp, long toTimestamp, TaxReportEntryHandler handler) throws IOException {
+        long found = 0;
+        for (int block = 0; block < blockCount; block++) {
+            if (maxTimestamps[block] < fromTimestamp || minTimestamps[block] > toTimestamp) {
+                continue;
+            }
+            try (ReportLineReader lineReader = openBlock(block)) {
+                int records = 0;
+                while (records < recordCounts[block] && lineReader.nextLine()) {
+                    TaxReportEntry taxReportEntry = TaxReportFileManager.parseTaxReportLine(lineReader);
+                    if (taxReportEntry == null) {
+                        continue;
+                    }
+                    records++;
+                    if (taxReportEntry.getTimestamp() >= fromTimestamp && taxReportEntry.getTimestamp() <= toTimestamp) {
+                        handler.handle(0, taxReportEntry);
+                        found++;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Find the record of an employee with the latest timestamp at or before the given time. Blocks are read from the
+     * end of the file backwards, skipping blocks that start after the time or can not beat the best record found so
+     * far, so for a time near the end of the file only the last few blocks are read. When timestamps are equal the
+     * record further down the file wins.
+     *
+     * @param employeeId long the employee id to search for.
+     * @param asOf       long the time in epoch milliseconds.
+     * @return TaxReportEntry or null if the employee has no record at or before the time.
+     * @throws IOException error thrown if the tax report file can not be read.
+     */
+    public TaxReportEntry findLatestAsOf(long employeeId, long asOf) throws IOException {
+        TaxReportEntry latest = null;
+        for (int block = blockCount - 1; block >= 0; block--) {
+            if (minTimestamps[block] > asOf || (latest != null && maxTimestamps[block] <= latest.getTimestamp())) {
+                continue;
+            }
+            //Within the block a later line wins a tie, the block is earlier in the file than any block already read.
+            TaxReportEntry blockLatest = null;
+            try (ReportLineReader lineReader = openBlock(block)) {
+                int records = 0;
+                while (records < recordCounts[block] && lineReader.nextLine()) {
+                    TaxReportEntry taxReportEntry = TaxReportFileManager.parseTaxReportLine(lineReader);
+                    if (taxReportEntry == null) {
+                        continue;
+                    }
+                    records++;
+                    if (taxReportEntry.getEmployeeId() == employeeId && taxReportEntry.getTimestamp() <= asOf
+                            && (blockLatest == null || taxReportEntry.getTimestamp() >= blockLatest.getTimestamp())) {
+                        blockLatest = taxReportEntry;
+                    }
+                }
+            }
+            if (blockLatest != null && (latest == null || blockLatest.getTimestamp() > latest.getTimestamp())) {
+                latest = blockLatest;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Open a line reader positioned at the start of a block.
+     */
+    private ReportLineReader openBlock(int block) throws IOException {
+        FileInputStream fileInputStream = new FileInputStream(new File(taxReportPathName).getAbsolutePath());
+        fileInputStream.getChannel().position(offsets[block]);
+        //A block is about recordsPerBlock short lines, so a buffer of 64 bytes per record usually holds it in one read.
+        return new ReportLineReader(fileInputStream, recordsPerBlock * 64);
+    }
+}
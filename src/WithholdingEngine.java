@@ -0,0 +1,420 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * WithholdingEngine works out the tax to withhold from each pay of a weekly, fortnightly or other periodic payroll.
+ * The withholding is defined by annualising the pay: the pay times the number of pays in a year is run through the
+ * annual tax rates and the annual tax is divided back by the number of pays (see annualisedWithholding).
+ *
+ * For each pay frequency the rates are compiled once into a WithholdingTable: the pay amounts at which the annualised
+ * income crosses a bracket threshold are worked out exactly, so a pay is placed in its bracket with a binary search over
+ * pay amounts and the tax is then worked out with the same arithmetic as the annual formula. The result is bit for bit
+ * the same as annualisedWithholding for every pay.
+ *
+ * The tables are built from the tax rates file and are rebuilt when the file changes (it is checked at most once per
+ * refreshIntervalMillis), so a long payroll run picks up a new rates file without being restarted.
+ */
+public class WithholdingEngine {
+
+    //Number of pays in a year for the supported pay frequencies
+    public static final int weeklyPeriods = 52;
+    public static final int fortnightlyPeriods = 26;
+    //Least time between two checks of the tax rates file for changes.
+    public static final long refreshIntervalMillis = 1000;
+
+    private final String taxRatesPathName;
+    private TaxRate[] taxRates;
+    //Compiled tables of the current rates by number of pays per year, built on first use.
+    private final Map<Integer, WithholdingTable> tables = new HashMap<>();
+    //Last modified time and length of the tax rates file the tables were built from.
+    private long ratesLastModified;
+    private long ratesLength;
+    private long lastChecked;
+
+    /**
+     * Constructor to build a withholding engine over a tax rates file, which is read straight away.
+     *
+     * @param taxRatesPathName String path to the tax rates file.
+     * @throws FileNotFoundException error thrown if the tax rates file can not be found.
+     */
+    public WithholdingEngine(String taxRatesPathName) throws FileNotFoundException {
+        this.taxRatesPathName = taxRatesPathName;
+        loadTaxRates();
+    }
+
+    /**
+     * Get the number of pays in a year for a pay frequency given by name ("weekly" or "fortnightly") or as a number.
+     *
+     * @param frequency String the pay frequency.
+     * @return int the number of pays in a year.
+     * @throws IllegalArgumentException if the frequency is not known or not a positive number.
+     */
+    public static int periodsPerYear(String frequency) {
+        switch (frequency.toLowerCase()) {
+            case "weekly":
+                return weeklyPeriods;
+            case "fortnightly":
+                return fortnightlyPeriods;
+            default:
+                int periods;
+                try {
+                    periods = Integer.parseInt(frequency);
+                } catch (NumberFormatException notNumber) {
+                    throw new IllegalArgumentException("Unknown pay frequency: " + frequency + " (expected weekly, fortnightly or pays per year)");
+                }
+                if (periods < 1) {
+                    throw new IllegalArgumentException("The number of pays per year must be at least 1: " + frequency);
+                }
+                return periods;
+        }
+    }
+
+    /**
+     * The withholding for one pay worked out from the annual rates: the pay is annualised, the tax on the annual income
+     * is calculated with TaxCalculator and divided back by the number of pays. This is the formula the compiled tables
+     * reproduce exactly.
+     *
+     * @param taxRates       TaxRate[] the annual tax rates.
+     * @param pay            double the amount of one pay.
+     * @param periodsPerYear int the number of pays in a year.
+     * @return double the tax to withhold from the pay.
+     */
+    public static double annualisedWithholding(TaxRate[] taxRates, double pay, int periodsPerYear) {
+        double annualIncome = pay * periodsPerYear;
+        TaxRate taxRate = TaxCalculator.findTaxRate(taxRates, annualIncome);
+        double annualTax = taxRate == null ? 0.0 : TaxCalculator.taxForBracket(taxRate, annualIncome);
+        return annualTax / periodsPerYear;
+    }
+
+    /**
+     * Get the tax to withhold from one pay.
+     *
+     * @param pay            double the amount of one pay.
+     * @param periodsPerYear int the number of pays in a year.
+     * @return double the tax to withhold, the same as annualisedWithholding with the current rates.
+     */
+    public synchronized double withhold(double pay, int periodsPerYear) {
+        return getTable(periodsPerYear).withhold(pay);
+    }
+
+    /**
+     * Get the tax to withhold from many pays at once with the same table, the rates file is checked once for the batch.
+     *
+     * @param pays           double[] the amounts of the pays.
+     * @param withholdings   double[] array that receives the withholding for each pay at the same position.
+     * @param count          int the number of pays from the start of the arrays.
+     * @param periodsPerYear int the number of pays in a year.
+     */
+    public void withholdBatch(double[] pays, double[] withholdings, int count, int periodsPerYear) {
+        WithholdingTable table;
+        synchronized (this) {
+            table = getTable(periodsPerYear);
+        }
+        for (int i = 0; i < count; i++) {
+            withholdings[i] = table.withhold(pays[i]);
+        }
+    }
+
+    /**
+     * Work out the withholding for every pay in a CSV or JSON Lines file (employee id and pay, in the formats read by
+     * TaxReportTransfer.importIncomes) and write "employeeId,pay,withholding" lines to a CSV file. Pays are worked out
+     * in batches of TaxReportTransfer.importBatchSize, so a rates file changed during a long run is used from the next batch.
+     *
+     * @param payPathName    String path to the file of pays.
+     * @param outputPathName String path to the CSV file to create (it is overwritten if it exists).
+     * @param periodsPerYear int the number of pays in a year.
+     * @return long the number of pays written.
+     * @throws IOException error thrown if either file can not be read or written, or a line of the pays is invalid.
+     */
+    public long writeWithholdings(String payPathName, String outputPathName, final int periodsPerYear) throws IOException {
+        final int batchSize = TaxReportTransfer.importBatchSize;
+        final long[] employeeIds = new long[batchSize];
+        final double[] pays = new double[batchSize];
+        final double[] withholdings = new double[batchSize];
+        final int[] batchCount = new int[1];
+        try (final ReportOutputBuffer outputBuffer = new ReportOutputBuffer(new FileOutputStream(new File(outputPathName).getAbsolutePath()))) {
+            outputBuffer.writeText("employeeId,pay,withholding\n");
+            IncomeRecordHandler batchHandler = (employeeId, pay) -> {
+                employeeIds[batchCount[0]] = employeeId;
+                pays[batchCount[0]] = pay;
+                if (++batchCount[0] == batchSize) {
+                    writeBatch(outputBuffer, employeeIds, pays, withholdings, batchCount[0], periodsPerYear);
+                    batchCount[0] = 0;
+                }
+            };
+            long written = TaxReportTransfer.readIncomeRecords(payPathName, batchHandler);
+            writeBatch(outputBuffer, employeeIds, pays, withholdings, batchCount[0], periodsPerYear);
+            outputBuffer.flush();
+            return written;
+        }
+    }
+
+    private void writeBatch(ReportOutputBuffer outputBuffer, long[] employeeIds, double[] pays, double[] withholdings,
+                            int count, int periodsPerYear) throws IOException {
+        withholdBatch(pays, withholdings, count, periodsPerYear);
+        for (int i = 0; i < count; i++) {
+            outputBuffer.writeNumber(employeeIds[i], 4);
+            outputBuffer.writeChar(',');
+            outputBuffer.writeAmount(pays[i]);
+            outputBuffer.writeChar(',');
+            outputBuffer.writeAmount(withholdings[i]);
+            outputBuffer.writeChar('\n');
+        }
+    }
+
+    /**
+     * Get the annual tax rates the current tables were built from.
+     *
+     * @return TaxRate[] the rates, in the order of the file.
+     */
+    public synchronized TaxRate[] getTaxRates() {
+        refreshIfChanged();
+        return taxRates.clone();
+    }
+
+    /**
+     * Get the compiled table for a number of pays per year, building it if the rates have changed or it is new.
+     */
+    private WithholdingTable getTable(int periodsPerYear) {
+        if (periodsPerYear < 1) {
+            throw new IllegalArgumentException("The number of pays per year must be at least 1: " + periodsPerYear);
+        }
+        refreshIfChanged();
+        WithholdingTable table = tables.get(periodsPerYear);
+        if (table == null) {
+            table = WithholdingTable.compile(taxRates, periodsPerYear);
+            tables.put(periodsPerYear, table);
+        }
+        return table;
+    }
+
+    /**
+     * Check (at most once per refreshIntervalMillis) whether the tax rates file has changed, and if it has read it again
+     * and drop the compiled tables. If the file can not be read the current rates are kept.
+     */
+    private void refreshIfChanged() {
+        long now = System.currentTimeMillis();
+        if (now - lastChecked < refreshIntervalMillis) {
+            return;
+        }
+        lastChecked = now;
+        File taxRatesFile = new File(taxRatesPathName);
+        if (taxRatesFile.lastModified() == ratesLastModified && taxRatesFile.length() == ratesLength) {
+            return;
+        }
+        try {
+            loadTaxRates();
+        } catch (FileNotFoundException e) {
+            System.out.println("[ Tax Rates ] Issue : " + taxRatesFile.getAbsolutePath() + " can not be read, the previous rates are still used.");
+        }
+    }
+
+    private void loadTaxRates() throws FileNotFoundException {
+        File taxRatesFile = new File(taxRatesPathName);
+        //Take the file times before reading, so a change made while it is read is picked up next time.
+        long lastModified = taxRatesFile.lastModified();
+        long length = taxRatesFile.length();
+        LinkedHashSet<TaxRate> taxRateSet = TaxRateFileReader.readTaxRatesFile(taxRatesPathName);
+        taxRates = taxRateSet.toArray(new TaxRate[0]);
+        ratesLastModified = lastModified;
+        ratesLength = length;
+        lastChecked = System.currentTimeMillis();
+        tables.clear();
+    }
+}
+
+/**
+ * The annual tax rates compiled for one pay frequency. The whole range of pay amounts is split into segments at every
+ * pay where the annualised income crosses a bracket threshold, and each segment keeps the bracket that
+ * TaxCalculator.findTaxRate picks for it (the first matching bracket, or none).
+ * Pays are compared through sortableBits, which orders doubles the same way as the numbers they hold and gives every
+ * double (including -0.0) its own place, so segment bounds are exact doubles.
+ */
+class WithholdingTable {
+
+    private final int periodsPerYear;
+    //Sortable bits of the smallest pay of each segment, the first segment starts at negative infinity.
+    private final long[] segmentStarts;
+    //Bracket of each segment: its base tax, rate per dollar (rateCents / 100, worked out once) and threshold the rate
+    //applies over, and whether the rate is charged at all. A segment with no bracket has no base tax and no rate, which
+    //gives the same 0.0 tax as having no bracket.
+    private final boolean[] charged;
+    private final double[] baseTaxes;
+    private final double[] ratesPerDollar;
+    private final double[] rateThresholds;
+
+    private WithholdingTable(int periodsPerYear, long[] segmentStarts, TaxRate[] segmentRates) {
+        this.periodsPerYear = periodsPerYear;
+        this.segmentStarts = segmentStarts;
+        int segments = segmentStarts.length;
+        baseTaxes = new double[segments];
+        charged = new boolean[segments];
+        ratesPerDollar = new double[segments];
+        rateThresholds = new double[segments];
+        for (int i = 0; i < segments; i++) {
+            if (segmentRates[i] != null) {
+                baseTaxes[i] = segmentRates[i].getBaseTax();
+                charged[i] = segmentRates[i].getRateCents() != 0;
+                ratesPerDollar[i] = segmentRates[i].getRateCents() / 100;
+                rateThresholds[i] = segmentRates[i].getRateThreshold();
+            }
+        }
+    }
+
+    /**
+     * Compile the annual tax rates for a number of pays per year, and check the table against the annualised formula
+     * on both sides of every segment bound.
+     *
+     * @param taxRates       TaxRate[] the annual tax rates, in the order of the file.
+     * @param periodsPerYear int the number of pays in a year.
+     * @return WithholdingTable the compiled table.
+     * @throws IllegalStateException if the table does not match the annualised formula (which would be a bug).
+     */
+    static WithholdingTable compile(TaxRate[] taxRates, int periodsPerYear) {
+        //Every pay where some bracket starts or stops matching the annualised income.
+        List<Long> bounds = new ArrayList<>();
+        for (TaxRate taxRate : taxRates) {
+            addBound(bounds, firstPayWhere(periodsPerYear, taxRate.getLowerThreshold(), true));
+            addBound(bounds, firstPayWhere(periodsPerYear, taxRate.getHigherThreshold(), false));
+        }
+        bounds.sort(null);
+
+        List<Long> segmentStarts = new ArrayList<>();
+        List<TaxRate> segmentRates = new ArrayList<>();
+        segmentStarts.add(sortableBits(Double.NEGATIVE_INFINITY));
+        segmentRates.add(TaxCalculator.findTaxRate(taxRates, Double.NEGATIVE_INFINITY * periodsPerYear));
+        for (long bound : bounds) {
+            //No bracket starts or stops matching between two bounds, so the bracket at a bound holds up to the next one.
+            TaxRate taxRate = TaxCalculator.findTaxRate(taxRates, fromSortableBits(bound) * periodsPerYear);
+            //Next to a segment with the same bracket the segment is merged into it.
+            if (taxRate != segmentRates.get(segmentRates.size() - 1)) {
+                segmentStarts.add(bound);
+                segmentRates.add(taxRate);
+            }
+        }
+
+        long[] starts = new long[segmentStarts.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = segmentStarts.get(i);
+        }
+        WithholdingTable table = new WithholdingTable(periodsPerYear, starts, segmentRates.toArray(new TaxRate[0]));
+        table.checkBounds(taxRates, bounds);
+        return table;
+    }
+
+    private static void addBound(List<Long> bounds, double pay) {
+        if (!Double.isNaN(pay)) {
+            bounds.add(sortableBits(pay));
+        }
+    }
+
+    /**
+     * Find the smallest pay whose annualised income (pay * periodsPerYear, rounded as a double) is at least the
+     * threshold, or above it when atLeast is false. Rounded multiplication never goes down as the pay goes up, so
+     * this is a binary search over the doubles in order.
+     *
+     * @return double the pay, or NaN if no pay gets there.
+     */
+    private static double firstPayWhere(int periodsPerYear, double threshold, boolean atLeast) {
+        long low = sortableBits(Double.NEGATIVE_INFINITY);
+        long high = sortableBits(Double.POSITIVE_INFINITY);
+        if (!reaches(fromSortableBits(high) * periodsPerYear, threshold, atLeast)) {
+            return Double.NaN;
+        }
+        while (low < high) {
+            //Average without overflow, the range spans most of the long values.
+            long middle = (low & high) + ((low ^ high) >> 1);
+            if (reaches(fromSortableBits(middle) * periodsPerYear, threshold, atLeast)) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return fromSortableBits(low);
+    }
+
+    private static boolean reaches(double annualIncome, double threshold, boolean atLeast) {
+        return atLeast ? annualIncome >= threshold : annualIncome > threshold;
+    }
+
+    /**
+     * Check the table against the annualised formula at each bound and the pay just below it.
+     */
+    private void checkBounds(TaxRate[] taxRates, List<Long> bounds) {
+        for (long bound : bounds) {
+            double pay = fromSortableBits(bound);
+            for (double checkPay : new double[]{pay, Math.nextDown(pay)}) {
+                double expected = WithholdingEngine.annualisedWithholding(taxRates, checkPay, periodsPerYear);
+                if (Double.doubleToLongBits(withhold(checkPay)) != Double.doubleToLongBits(expected)) {
+                    throw new IllegalStateException("The withholding table for " + periodsPerYear
+                            + " pays a year does not match the annual rates at a pay of " + checkPay);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the tax to withhold from one pay.
+     *
+     * @param pay double the amount of one pay.
+     * @return double the tax to withhold, bit for bit the same as WithholdingEngine.annualisedWithholding.
+     */
+    double withhold(double pay) {
+        if (Double.isNaN(pay)) {
+            //No bracket matches an income that is not a number.
+            return 0.0 / periodsPerYear;
+        }
+        int segment = findSegment(sortableBits(pay));
+        //The same steps as annualisedWithholding and TaxCalculator.taxForBracket, so the rounding is the same.
+        double annualIncome = pay * periodsPerYear;
+        double totalTax = baseTaxes[segment];
+        if (charged[segment]) {
+            totalTax += (annualIncome - rateThresholds[segment]) * ratesPerDollar[segment];
+        }
+        return totalTax / periodsPerYear;
+    }
+
+    /**
+     * Binary search for the last segment starting at or before the pay. The loop always runs log2(segments) times and
+     * picks the half with a conditional move rather than a branch, as pays of a payroll land in brackets at random and
+     * a mispredicted branch costs more than the whole lookup.
+     */
+    private int findSegment(long payBits) {
+        int base = 0;
+        int remaining = segmentStarts.length;
+        while (remaining > 1) {
+            int half = remaining >>> 1;
+            base = segmentStarts[base + half] <= payBits ? base + half : base;
+            remaining -= half;
+        }
+        return base;
+    }
+
+    /**
+     * Get the number of segments the pay range is split into.
+     *
+     * @return int the number of segments.
+     */
+    int getSegmentCount() {
+        return segmentStarts.length;
+    }
+
+    /**
+     * Map a double to a long that sorts in the same order as the numbers, with -0.0 just below 0.0.
+     */
+    static long sortableBits(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits >= 0 ? bits : bits ^ Long.MAX_VALUE;
+    }
+
+    static double fromSortableBits(long sortable) {
+        return Double.longBitsToDouble(sortable >= 0 ? sortable : sortable ^ Long.MAX_VALUE);
+    }
+}